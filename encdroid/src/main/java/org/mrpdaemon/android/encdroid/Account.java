@@ -68,6 +68,11 @@ public abstract class Account {
 	// Return the user name associated with this Account
 	public abstract String getUserName();
 
+	// Maximum number of files to transfer to/from this Account at once
+	public int getMaxConcurrentTransfers() {
+		return 1;
+	}
+
 	// Return an EncFSFileProvider for this account at the given path
 	public abstract EncFSFileProvider getFileProvider(String path);
 
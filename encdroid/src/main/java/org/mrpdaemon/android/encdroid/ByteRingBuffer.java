@@ -0,0 +1,225 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Bounded single producer/single consumer byte buffer used to hand data from
+ * a writing thread to a reading thread. Unlike PipedInputStream the buffer
+ * size is configurable and both sides block on conditions rather than
+ * polling, so large writes are handed off in big chunks. Either side can
+ * abort the transfer, which wakes up and fails the other side.
+ */
+public class ByteRingBuffer {
+
+	// Buffer storage
+	private final byte[] buffer;
+
+	// Position of the next byte to read
+	private int readPos = 0;
+
+	// Number of bytes available for reading
+	private int count = 0;
+
+	// Whether the writer finished
+	private boolean writerClosed = false;
+
+	// Abort reason, set if either side aborted the transfer
+	private String abortMessage = null;
+
+	// Lock and conditions for signalling between the two sides
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	// Stream views of the buffer
+	private final InputStream inputStream = new RingInputStream();
+	private final OutputStream outputStream = new RingOutputStream();
+
+	public ByteRingBuffer(int capacity) {
+		buffer = new byte[capacity];
+	}
+
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	// Abort the transfer, failing any pending and future reads/writes
+	public void abort(String message) {
+		lock.lock();
+		try {
+			if (abortMessage == null) {
+				abortMessage = (message != null) ? message : "Transfer aborted";
+			}
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Write len bytes from b, blocking while the buffer is full
+	private void write(byte[] b, int off, int len) throws IOException {
+		lock.lock();
+		try {
+			while (len > 0) {
+				while (count == buffer.length && abortMessage == null) {
+					notFull.await();
+				}
+
+				if (abortMessage != null) {
+					throw new IOException(abortMessage);
+				}
+				if (writerClosed) {
+					throw new IOException("Write after close");
+				}
+
+				// Copy into the free region, which may wrap around the end
+				int writePos = (readPos + count) % buffer.length;
+				int chunk = Math.min(len, buffer.length - count);
+				chunk = Math.min(chunk, buffer.length - writePos);
+
+				System.arraycopy(b, off, buffer, writePos, chunk);
+				count += chunk;
+				off += chunk;
+				len -= chunk;
+
+				notEmpty.signal();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Read up to len bytes into b, blocking while the buffer is empty
+	private int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+
+		lock.lock();
+		try {
+			while (count == 0 && !writerClosed && abortMessage == null) {
+				notEmpty.await();
+			}
+
+			if (abortMessage != null) {
+				throw new IOException(abortMessage);
+			}
+			if (count == 0) {
+				// Writer closed and everything has been consumed
+				return -1;
+			}
+
+			int chunk = Math.min(len, count);
+			chunk = Math.min(chunk, buffer.length - readPos);
+
+			System.arraycopy(buffer, readPos, b, off, chunk);
+			readPos = (readPos + chunk) % buffer.length;
+			count -= chunk;
+
+			notFull.signal();
+
+			return chunk;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Signal that no more data will be written
+	private void closeWriter() {
+		lock.lock();
+		try {
+			writerClosed = true;
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Number of bytes available without blocking
+	private int available() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private class RingInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int result = ByteRingBuffer.this.read(b, 0, 1);
+			return (result == -1) ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return ByteRingBuffer.this.read(b, off, len);
+		}
+
+		@Override
+		public int available() {
+			return ByteRingBuffer.this.available();
+		}
+
+		@Override
+		public void close() {
+			// Reader went away, don't let the writer block forever
+			abort("Reader closed");
+		}
+	}
+
+	private class RingOutputStream extends OutputStream {
+
+		@Override
+		public void write(int oneByte) throws IOException {
+			ByteRingBuffer.this.write(new byte[] { (byte) oneByte }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ByteRingBuffer.this.write(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			closeWriter();
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+
+/*
+ * Cancellation state of a transfer, shared by every thread working on it.
+ * The signal is bound to those threads so code several layers down, such as
+ * cloud output streams opened by encfs-java, can find it without it being
+ * passed through. Long running operations either poll the signal or
+ * register a listener that aborts them when it fires.
+ */
+public class CancelSignal {
+
+	// Signal bound to the calling thread
+	private final static ThreadLocal<CancelSignal> current = new ThreadLocal<CancelSignal>();
+
+	// Whether the transfer was cancelled
+	private volatile boolean mCancelled = false;
+
+	// Listeners to notify on cancellation
+	private final ArrayList<TransferExecutor.CancelListener> mListeners = new ArrayList<TransferExecutor.CancelListener>();
+
+	// Return the signal bound to the calling thread, null if none
+	public static CancelSignal current() {
+		return current.get();
+	}
+
+	// Bind the given signal (or none) to the calling thread
+	public static void bind(CancelSignal signal) {
+		if (signal != null) {
+			current.set(signal);
+		} else {
+			current.remove();
+		}
+	}
+
+	// Throw if the signal bound to the calling thread was cancelled
+	public static void throwIfCurrentCancelled() throws InterruptedIOException {
+		CancelSignal signal = current.get();
+		if (signal != null && signal.isCancelled()) {
+			throw new InterruptedIOException("Transfer cancelled");
+		}
+	}
+
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	// Cancel the transfer and notify the listeners
+	public void cancel() {
+		ArrayList<TransferExecutor.CancelListener> listeners;
+		synchronized (mListeners) {
+			if (mCancelled) {
+				return;
+			}
+			mCancelled = true;
+			listeners = new ArrayList<TransferExecutor.CancelListener>(
+					mListeners);
+		}
+
+		for (TransferExecutor.CancelListener listener : listeners) {
+			listener.onCancel();
+		}
+	}
+
+	/*
+	 * Add a listener to notify on cancellation. If the signal was already
+	 * cancelled the listener is notified right away.
+	 */
+	public void addListener(TransferExecutor.CancelListener listener) {
+		synchronized (mListeners) {
+			if (!mCancelled) {
+				mListeners.add(listener);
+				return;
+			}
+		}
+		listener.onCancel();
+	}
+
+	public void removeListener(TransferExecutor.CancelListener listener) {
+		synchronized (mListeners) {
+			mListeners.remove(listener);
+		}
+	}
+}
@@ -20,10 +20,13 @@ package org.mrpdaemon.android.encdroid;
 
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
@@ -39,7 +42,7 @@ public class DBHelper extends SQLiteOpenHelper {
 	public static final String DB_NAME = "volume.db";
 
 	// Database version
-	public static final int DB_VERSION = 4;
+	public static final int DB_VERSION = 6;
 
 	// Volume table name
 	public static final String DB_TABLE = "volumes";
@@ -52,6 +55,36 @@ public class DBHelper extends SQLiteOpenHelper {
 	public static final String DB_COL_TYPE = "type";
 	public static final String DB_COL_KEY = "key";
 
+	// Google Drive file ID table name
+	public static final String DB_DRIVE_TABLE = "drive_file_ids";
+
+	// Google Drive file ID table column names
+	public static final String DB_COL_DRIVE_ROOT = "root";
+	public static final String DB_COL_DRIVE_PATH = "path";
+	public static final String DB_COL_DRIVE_FILE_ID = "fileId";
+	public static final String DB_COL_DRIVE_ACCESSED = "accessed";
+
+	// Transfer journal table name
+	public static final String DB_JOURNAL_TABLE = "transfer_journal";
+
+	// Transfer journal table column names
+	public static final String DB_COL_JOURNAL_TRANSFER = "transfer";
+	public static final String DB_COL_JOURNAL_SRC = "src";
+	public static final String DB_COL_JOURNAL_DST = "dst";
+	public static final String DB_COL_JOURNAL_LENGTH = "length";
+	public static final String DB_COL_JOURNAL_STATE = "state";
+	public static final String DB_COL_JOURNAL_BYTES = "bytes";
+	public static final String DB_COL_JOURNAL_UPDATED = "updated";
+
+	// Maximum number of cached Google Drive file ID's per volume root
+	private static final int DRIVE_FILE_ID_MAX_ENTRIES = 4096;
+
+	// Number of least recently used file ID's evicted at once
+	private static final int DRIVE_FILE_ID_EVICT_ENTRIES = 512;
+
+	// Lookups only refresh an entry's access time once per interval
+	private static final long DRIVE_FILE_ID_ACCESS_GRANULARITY_MS = 60 * 1000;
+
 	private static final String[] NO_ARGS = {};
 
 	// Application object
@@ -71,19 +104,60 @@ public class DBHelper extends SQLiteOpenHelper {
 				+ DB_COL_CONFIGPATH + " text)";
 		Log.d(TAG, "onCreate() executing SQL: " + sqlCmd);
 		db.execSQL(sqlCmd);
+
+		createDriveTable(db);
+		createJournalTable(db);
+	}
+
+	// Create the table holding the Google Drive path to file ID index
+	private void createDriveTable(SQLiteDatabase db) {
+		String sqlCmd = "CREATE TABLE IF NOT EXISTS " + DB_DRIVE_TABLE + " ("
+				+ DB_COL_DRIVE_ROOT + " text not null, " + DB_COL_DRIVE_PATH
+				+ " text not null, " + DB_COL_DRIVE_FILE_ID + " text not null, "
+				+ DB_COL_DRIVE_ACCESSED + " int, primary key ("
+				+ DB_COL_DRIVE_ROOT + ", " + DB_COL_DRIVE_PATH + "))";
+		Log.d(TAG, "createDriveTable() executing SQL: " + sqlCmd);
+		db.execSQL(sqlCmd);
+	}
+
+	// Create the table recording the state of each file of a transfer
+	private void createJournalTable(SQLiteDatabase db) {
+		String sqlCmd = "CREATE TABLE IF NOT EXISTS " + DB_JOURNAL_TABLE
+				+ " (" + DB_COL_JOURNAL_TRANSFER + " text not null, "
+				+ DB_COL_JOURNAL_SRC + " text not null, " + DB_COL_JOURNAL_DST
+				+ " text, " + DB_COL_JOURNAL_LENGTH + " int, "
+				+ DB_COL_JOURNAL_STATE + " int, " + DB_COL_JOURNAL_BYTES
+				+ " int, " + DB_COL_JOURNAL_UPDATED + " int, primary key ("
+				+ DB_COL_JOURNAL_TRANSFER + ", " + DB_COL_JOURNAL_SRC + "))";
+		Log.d(TAG, "createJournalTable() executing SQL: " + sqlCmd);
+		db.execSQL(sqlCmd);
 	}
 
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		if (oldVersion < 3) {
+			db.execSQL("DROP TABLE IF EXISTS " + DB_TABLE);
+			db.execSQL("DROP TABLE IF EXISTS " + DB_DRIVE_TABLE);
+			Log.d(TAG, "onUpgrade() recreating DB");
+			onCreate(db);
+			return;
+		}
+
 		// Adding column DB_COL_CONFIGPATH on upgrade
 		if (oldVersion == 3) {
 			Log.d(TAG, "onUpgrade() Upgrading DB");
 			db.execSQL("ALTER TABLE " + DB_TABLE + " ADD COLUMN "
 					+ DB_COL_CONFIGPATH + " TEXT");
-		} else {
-			db.execSQL("DROP TABLE IF EXISTS " + DB_TABLE);
-			Log.d(TAG, "onUpgrade() recreating DB");
-			onCreate(db);
+		}
+
+		// Adding Google Drive file ID table on upgrade
+		if (oldVersion <= 4) {
+			createDriveTable(db);
+		}
+
+		// Adding transfer journal table on upgrade
+		if (oldVersion <= 5) {
+			createJournalTable(db);
 		}
 	}
 
@@ -231,4 +305,196 @@ public class DBHelper extends SQLiteOpenHelper {
 
 		return volumes;
 	}
-}
\ No newline at end of file
+
+	public String getDriveFileId(String root, String path) {
+		SQLiteDatabase db = getReadableDatabase();
+		String fileId = null;
+		long accessed = 0;
+
+		Cursor cursor = db.query(DB_DRIVE_TABLE, new String[] {
+				DB_COL_DRIVE_FILE_ID, DB_COL_DRIVE_ACCESSED },
+				DB_COL_DRIVE_ROOT + "=? AND " + DB_COL_DRIVE_PATH + "=?",
+				new String[] { root, path }, null, null, null);
+
+		try {
+			if (cursor.moveToFirst()) {
+				fileId = cursor.getString(0);
+				accessed = cursor.getLong(1);
+			}
+		} finally {
+			cursor.close();
+		}
+
+		// Refresh the access time so eviction drops the least recently used
+		long now = System.currentTimeMillis();
+		if (fileId != null
+				&& now - accessed >= DRIVE_FILE_ID_ACCESS_GRANULARITY_MS) {
+			ContentValues values = new ContentValues();
+			values.put(DB_COL_DRIVE_ACCESSED, now);
+			getWritableDatabase().update(DB_DRIVE_TABLE, values,
+					DB_COL_DRIVE_ROOT + "=? AND " + DB_COL_DRIVE_PATH + "=?",
+					new String[] { root, path });
+		}
+
+		return fileId;
+	}
+
+	public void cacheDriveFileIds(String root, Map<String, String> fileIds) {
+		SQLiteDatabase db = getWritableDatabase();
+		long now = System.currentTimeMillis();
+
+		db.beginTransaction();
+		try {
+			ContentValues values = new ContentValues();
+			for (Map.Entry<String, String> entry : fileIds.entrySet()) {
+				values.clear();
+				values.put(DB_COL_DRIVE_ROOT, root);
+				values.put(DB_COL_DRIVE_PATH, entry.getKey());
+				values.put(DB_COL_DRIVE_FILE_ID, entry.getValue());
+				values.put(DB_COL_DRIVE_ACCESSED, now);
+				db.insertWithOnConflict(DB_DRIVE_TABLE, null, values,
+						SQLiteDatabase.CONFLICT_REPLACE);
+			}
+
+			/*
+			 * Once the root has too many entries, evict the least recently
+			 * used ones. A batch is evicted at a time so the sorting query
+			 * doesn't have to run again on the next insert.
+			 */
+			long numEntries = DatabaseUtils.queryNumEntries(db,
+					DB_DRIVE_TABLE, DB_COL_DRIVE_ROOT + "=?",
+					new String[] { root });
+			if (numEntries > DRIVE_FILE_ID_MAX_ENTRIES) {
+				db.delete(DB_DRIVE_TABLE, DB_COL_DRIVE_ROOT + "=? AND "
+						+ DB_COL_DRIVE_PATH + " NOT IN (SELECT "
+						+ DB_COL_DRIVE_PATH + " FROM " + DB_DRIVE_TABLE
+						+ " WHERE " + DB_COL_DRIVE_ROOT + "=? ORDER BY "
+						+ DB_COL_DRIVE_ACCESSED + " DESC LIMIT "
+						+ (DRIVE_FILE_ID_MAX_ENTRIES - DRIVE_FILE_ID_EVICT_ENTRIES)
+						+ ")", new String[] { root, root });
+			}
+
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	// Delete the cached file ID for the given path and all paths under it
+	public void deleteDriveFileIds(String root, String path) {
+		SQLiteDatabase db = getWritableDatabase();
+
+		if (path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+
+		/*
+		 * Paths under the given one sort between path + "/" and path + "0",
+		 * '0' being the character after '/'. Comparing the stored text like
+		 * this doesn't depend on how SQLite counts characters, unlike
+		 * matching a substring of the prefix's Java length.
+		 */
+		db.delete(DB_DRIVE_TABLE, DB_COL_DRIVE_ROOT + "=? AND ("
+				+ DB_COL_DRIVE_PATH + "=? OR (" + DB_COL_DRIVE_PATH + ">=? AND "
+				+ DB_COL_DRIVE_PATH + "<?))", new String[] { root, path,
+				path + "/", path + "0" });
+	}
+
+	public void clearDriveFileIds(String root) {
+		SQLiteDatabase db = getWritableDatabase();
+
+		Log.d(TAG, "clearDriveFileIds() for root " + root);
+
+		db.delete(DB_DRIVE_TABLE, DB_COL_DRIVE_ROOT + "=?",
+				new String[] { root });
+	}
+
+	public void clearAllDriveFileIds() {
+		SQLiteDatabase db = getWritableDatabase();
+
+		Log.d(TAG, "clearAllDriveFileIds()");
+
+		db.delete(DB_DRIVE_TABLE, null, null);
+	}
+
+	// Return the state of each file journaled for the given transfer by source
+	public Map<String, Integer> getJournalStates(String transfer) {
+		SQLiteDatabase db = getReadableDatabase();
+		HashMap<String, Integer> states = new HashMap<String, Integer>();
+
+		Cursor cursor = db.query(DB_JOURNAL_TABLE, new String[] {
+				DB_COL_JOURNAL_SRC, DB_COL_JOURNAL_STATE },
+				DB_COL_JOURNAL_TRANSFER + "=?", new String[] { transfer },
+				null, null, null);
+
+		try {
+			while (cursor.moveToNext()) {
+				states.put(cursor.getString(0), cursor.getInt(1));
+			}
+		} finally {
+			cursor.close();
+		}
+
+		return states;
+	}
+
+	// Add files to the journal of the given transfer, keeping existing entries
+	public void insertJournalFiles(String transfer,
+			List<? extends TransferManifest.Entry<?, ?>> files, int state) {
+		SQLiteDatabase db = getWritableDatabase();
+		long now = System.currentTimeMillis();
+
+		db.beginTransaction();
+		try {
+			ContentValues values = new ContentValues();
+			for (TransferManifest.Entry<?, ?> file : files) {
+				values.clear();
+				values.put(DB_COL_JOURNAL_TRANSFER, transfer);
+				values.put(DB_COL_JOURNAL_SRC, String.valueOf(file.src));
+				values.put(DB_COL_JOURNAL_DST, String.valueOf(file.dst));
+				values.put(DB_COL_JOURNAL_LENGTH, file.length);
+				values.put(DB_COL_JOURNAL_STATE, state);
+				values.put(DB_COL_JOURNAL_BYTES, 0);
+				values.put(DB_COL_JOURNAL_UPDATED, now);
+				db.insertWithOnConflict(DB_JOURNAL_TABLE, null, values,
+						SQLiteDatabase.CONFLICT_IGNORE);
+			}
+
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	public void updateJournalFile(String transfer, String src, int state,
+			long bytes) {
+		SQLiteDatabase db = getWritableDatabase();
+
+		ContentValues values = new ContentValues();
+		values.put(DB_COL_JOURNAL_STATE, state);
+		values.put(DB_COL_JOURNAL_BYTES, bytes);
+		values.put(DB_COL_JOURNAL_UPDATED, System.currentTimeMillis());
+		db.update(DB_JOURNAL_TABLE, values, DB_COL_JOURNAL_TRANSFER
+				+ "=? AND " + DB_COL_JOURNAL_SRC + "=?", new String[] {
+				transfer, src });
+	}
+
+	public void deleteJournal(String transfer) {
+		SQLiteDatabase db = getWritableDatabase();
+
+		Log.d(TAG, "deleteJournal() for transfer " + transfer);
+
+		db.delete(DB_JOURNAL_TABLE, DB_COL_JOURNAL_TRANSFER + "=?",
+				new String[] { transfer });
+	}
+
+	// Delete journals of transfers that haven't been touched since the cutoff
+	public void pruneJournals(long cutoff) {
+		SQLiteDatabase db = getWritableDatabase();
+
+		db.delete(DB_JOURNAL_TABLE, DB_COL_JOURNAL_TRANSFER + " NOT IN (SELECT "
+				+ DB_COL_JOURNAL_TRANSFER + " FROM " + DB_JOURNAL_TABLE
+				+ " WHERE " + DB_COL_JOURNAL_UPDATED + ">=?)",
+				new String[] { Long.toString(cutoff) });
+	}
+}
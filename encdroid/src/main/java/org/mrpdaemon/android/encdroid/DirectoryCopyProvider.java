@@ -0,0 +1,36 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.IOException;
+
+/*
+ * Interface to be implemented by file providers that can copy a directory
+ * and everything under it on the server, without transferring file contents
+ * through the device.
+ */
+public interface DirectoryCopyProvider {
+
+	/*
+	 * Copy the directory at srcPath to dstPath, which must not exist yet.
+	 * Names of the copied entries are kept as they are.
+	 */
+	public boolean copyDirectory(String srcPath, String dstPath)
+			throws IOException;
+}
@@ -0,0 +1,129 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+import com.google.api.services.drive.model.File;
+
+/*
+ * Size bounded LRU cache of Drive File metadata keyed by file ID. Entries
+ * expire after a fixed TTL so that changes made to the volume from other
+ * clients (and expiring download URL's) are eventually picked up.
+ */
+public class DriveMetadataCache {
+
+	// Cache entry with the time it was inserted
+	private static class Entry {
+		final File file;
+		final long timestamp;
+
+		Entry(File file, long timestamp) {
+			this.file = file;
+			this.timestamp = timestamp;
+		}
+	}
+
+	// Maximum number of entries
+	private final int maxEntries;
+
+	// Time to live for entries in milliseconds
+	private final long ttlMillis;
+
+	// Entries in access order (fileId -> Entry)
+	private final LinkedHashMap<String, Entry> entries;
+
+	// Hit/miss counters
+	private long hits = 0;
+	private long misses = 0;
+
+	public DriveMetadataCache(final int maxEntries, long ttlMillis) {
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	// Return the cached File for the given ID or null if missing/expired
+	public synchronized File get(String fileId) {
+		Entry entry = entries.get(fileId);
+
+		if (entry != null) {
+			if (SystemClock.elapsedRealtime() - entry.timestamp < ttlMillis) {
+				hits++;
+				return entry.file;
+			}
+			entries.remove(fileId);
+		}
+
+		misses++;
+		return null;
+	}
+
+	// Insert the given File into the cache
+	public synchronized void put(File file) {
+		if (file == null || file.getId() == null) {
+			return;
+		}
+
+		entries.put(file.getId(),
+				new Entry(file, SystemClock.elapsedRealtime()));
+	}
+
+	// Drop the entry for the given file ID
+	public synchronized void invalidate(String fileId) {
+		entries.remove(fileId);
+	}
+
+	// Drop all entries
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "DriveMetadataCache size=" + entries.size() + "/" + maxEntries
+				+ " hits=" + hits + " misses=" + misses;
+	}
+}
@@ -25,6 +25,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -67,6 +68,15 @@ class DropboxAccount extends Account {
 	// Dropbox preferences
 	private SharedPreferences mPrefs;
 
+	// Application object
+	private EDApplication mApp;
+
+	// Maximum number of concurrent transfers for this account
+	private final static int MAX_CONCURRENT_TRANSFERS = 4;
+
+	// Transfer lane for this account
+	private TransferExecutor.Lane mTransferLane;
+
 	// User name
 	private String userName;
 
@@ -79,6 +89,9 @@ class DropboxAccount extends Account {
 	};
 
 	DropboxAccount(EDApplication app) {
+		mApp = app;
+		mTransferLane = app.getTransferExecutor().getLane(getName(),
+				MAX_CONCURRENT_TRANSFERS);
 		mPrefs = app.getSharedPreferences(PREFS_KEY, 0);
 
 		// Figure out whether we're linked to a Dropbox account
@@ -135,11 +148,11 @@ class DropboxAccount extends Account {
 		Log.d(TAG, "Linking with dropbox account");
 		linkInProgress = true;
 
-		((Activity) context).runOnUiThread(new Thread(new Runnable() {
+		((Activity) context).runOnUiThread(new Runnable() {
 			public void run() {
 				Auth.startOAuth2Authentication(context, APP_KEY);
 			}
-		}));
+		});
 	}
 
 	@Override
@@ -192,7 +205,8 @@ class DropboxAccount extends Account {
 			try {
 				createDbxClient(accessToken);
 
-				Thread apiThread = new Thread(new Runnable() {
+				// Network access isn't allowed from the calling UI thread
+				mTransferLane.submit(new Runnable() {
 					@Override
 					public void run() {
 						try {
@@ -204,9 +218,7 @@ class DropboxAccount extends Account {
 							authenticated = false;
 						}
 					}
-				});
-				apiThread.start();
-				apiThread.join();
+				}).get();
 
 				if (authenticated) {
 					Log.d(TAG, "Successfully authenticated to Dropbox API");
@@ -259,19 +271,20 @@ class DropboxAccount extends Account {
 	public void unLink() {
 		if (linked) {
 			if (authenticated) {
-				Thread apiThread = new Thread(new Runnable() {
-					@Override
-					public void run() {
-						try {
-							mDbxClient.auth().tokenRevoke();
-						} catch (Exception e) {
-							Log.e(TAG, e.getMessage());
-						}
-					}
-				});
-				apiThread.start();
+				// Stop any transfers still running for this account
+				mTransferLane.cancelAll();
+
 				try {
-					apiThread.join();
+					mTransferLane.submit(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								mDbxClient.auth().tokenRevoke();
+							} catch (Exception e) {
+								Log.e(TAG, e.getMessage());
+							}
+						}
+					}).get();
 				} catch (Exception e) {
 					Log.e(TAG, e.getMessage());
 				}
@@ -308,14 +321,31 @@ class DropboxAccount extends Account {
 		return linkInProgress;
 	}
 
+	@Override
+	public int getMaxConcurrentTransfers() {
+		return MAX_CONCURRENT_TRANSFERS;
+	}
+
 	@Override
 	public String getUserName() {
 		return userName;
 	}
 
+	// Upload chunk size from the application preferences
+	private int getUploadChunkSize() {
+		SharedPreferences prefs = PreferenceManager
+				.getDefaultSharedPreferences(mApp);
+		try {
+			return Integer.parseInt(prefs.getString("dropbox_chunk_size",
+					"8")) * 1024 * 1024;
+		} catch (NumberFormatException e) {
+			return DropboxOutputStream.DEFAULT_CHUNK_SIZE;
+		}
+	}
+
 	@Override
 	public EncFSFileProvider getFileProvider(String path) {
-		return new DropboxFileProvider(mDbxClient, path);
+		return new DropboxFileProvider(mDbxClient, path, getUploadChunkSize());
 	}
 
 	@Override
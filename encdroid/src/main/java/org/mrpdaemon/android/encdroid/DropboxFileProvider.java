@@ -18,28 +18,41 @@
 
 package org.mrpdaemon.android.encdroid;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import org.mrpdaemon.sec.encfs.EncFSFileInfo;
 import org.mrpdaemon.sec.encfs.EncFSFileProvider;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.dropbox.core.DbxException;
 import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.DbxDownloadStyleBuilder;
+import com.dropbox.core.v2.files.DeletedMetadata;
 import com.dropbox.core.v2.files.FileMetadata;
 import com.dropbox.core.v2.files.FolderMetadata;
 import com.dropbox.core.v2.files.GetMetadataErrorException;
+import com.dropbox.core.v2.files.ListFolderContinueErrorException;
+import com.dropbox.core.v2.files.ListFolderErrorException;
 import com.dropbox.core.v2.files.ListFolderResult;
 import com.dropbox.core.v2.files.Metadata;
+import com.dropbox.core.v2.files.RelocationErrorException;
 
-class DropboxFileProvider implements EncFSFileProvider {
+class DropboxFileProvider implements EncFSFileProvider, RangedFileProvider,
+		DirectoryCopyProvider {
 
 	// Logger tag
 	private final static String TAG = "DropboxFileProvider";
@@ -50,10 +63,71 @@ class DropboxFileProvider implements EncFSFileProvider {
 	// Root path for this file provider
 	private String rootPath;
 
+	// Chunk size for uploads
+	private int mUploadChunkSize;
+
+	// Maximum number of directory listings to cache
+	private final static int LISTING_CACHE_SIZE = 32;
+
+	// Maximum number of cached metadata entries
+	private final static int METADATA_CACHE_SIZE = 1024;
+
+	// Time to live for cached metadata and listings used for lookups
+	private final static long METADATA_CACHE_TTL_MS = 30 * 1000;
+
+	// Cached directory listing along with the cursor to refresh it
+	private static class DirListing {
+		// Cursor from the last listFolder/listFolderContinue call
+		String cursor;
+
+		// Time of the last refresh
+		long timestamp;
+
+		// Entries that are known to be out of date (lowercase names)
+		final HashSet<String> dirty = new HashSet<String>();
+
+		// Directory entries (lowercase name -> Metadata)
+		final LinkedHashMap<String, Metadata> entries = new LinkedHashMap<String, Metadata>();
+	}
+
+	// Directory listing cache (lowercase absPath -> DirListing)
+	private final LinkedHashMap<String, DirListing> listingCache = new LinkedHashMap<String, DirListing>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, DirListing> eldest) {
+			return size() > LISTING_CACHE_SIZE;
+		}
+	};
+
+	// Cached metadata for a path, null metadata if the path doesn't exist
+	private static class MetaEntry {
+		final Metadata meta;
+		final long timestamp;
+
+		MetaEntry(Metadata meta, long timestamp) {
+			this.meta = meta;
+			this.timestamp = timestamp;
+		}
+	}
+
+	// Metadata cache (lowercase absPath -> MetaEntry)
+	private final LinkedHashMap<String, MetaEntry> metadataCache = new LinkedHashMap<String, MetaEntry>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, MetaEntry> eldest) {
+			return size() > METADATA_CACHE_SIZE;
+		}
+	};
+
 	DropboxFileProvider(DbxClientV2 dbxClient,
-			String rootPath) {
+			String rootPath, int uploadChunkSize) {
 		this.mDbxClient = dbxClient;
 		this.rootPath = rootPath;
+		this.mUploadChunkSize = uploadChunkSize;
 	}
 
 	// Generate absolute path for a given relative path
@@ -74,6 +148,169 @@ class DropboxFileProvider implements EncFSFileProvider {
 		}
 	}
 
+	// Dropbox paths are case insensitive
+	private static String cacheKey(String absPath) {
+		return absPath.toLowerCase(Locale.US);
+	}
+
+	// Return the cached listing for the given directory, if any
+	private DirListing getCachedListing(String absPath) {
+		synchronized (listingCache) {
+			return listingCache.get(cacheKey(absPath));
+		}
+	}
+
+	// Cache the listing for the given directory
+	private void putCachedListing(String absPath, DirListing listing) {
+		synchronized (listingCache) {
+			listingCache.put(cacheKey(absPath), listing);
+		}
+	}
+
+	// Drop cached listings for the given directory and everything below it
+	private void dropCachedListings(String absPath) {
+		String key = cacheKey(absPath);
+		synchronized (listingCache) {
+			Iterator<String> iter = listingCache.keySet().iterator();
+			while (iter.hasNext()) {
+				String cachedPath = iter.next();
+				if (cachedPath.equals(key) || cachedPath.startsWith(key + "/")) {
+					iter.remove();
+				}
+			}
+		}
+	}
+
+	// Parent directory of the given absolute path
+	private static String parentPath(String absPath) {
+		String parent = new File(absPath).getParent();
+		return (parent == null) ? "/" : parent;
+	}
+
+	// Last path element of the given absolute path, lowercased
+	private static String nameKey(String absPath) {
+		return new File(absPath).getName().toLowerCase(Locale.US);
+	}
+
+	/*
+	 * Record the metadata for the given path (null if it doesn't exist) in the
+	 * metadata cache as well as in the cached listing of its parent.
+	 */
+	private void cacheMetadata(String absPath, Metadata meta) {
+		synchronized (metadataCache) {
+			metadataCache.put(cacheKey(absPath),
+					new MetaEntry(meta, SystemClock.elapsedRealtime()));
+		}
+
+		DirListing listing = getCachedListing(parentPath(absPath));
+		if (listing != null) {
+			synchronized (listing) {
+				if (meta == null) {
+					listing.entries.remove(nameKey(absPath));
+				} else {
+					listing.entries.put(nameKey(absPath), meta);
+				}
+				listing.dirty.remove(nameKey(absPath));
+			}
+		}
+	}
+
+	// Forget everything cached about the given path and anything below it
+	private void invalidatePath(String absPath) {
+		String key = cacheKey(absPath);
+		synchronized (metadataCache) {
+			Iterator<String> iter = metadataCache.keySet().iterator();
+			while (iter.hasNext()) {
+				String cachedPath = iter.next();
+				if (cachedPath.equals(key) || cachedPath.startsWith(key + "/")) {
+					iter.remove();
+				}
+			}
+		}
+
+		dropCachedListings(absPath);
+
+		// Don't answer lookups for this path from the parent listing
+		DirListing listing = getCachedListing(parentPath(absPath));
+		if (listing != null) {
+			synchronized (listing) {
+				listing.dirty.add(nameKey(absPath));
+			}
+		}
+	}
+
+	/*
+	 * Return metadata for the given path, or null if it doesn't exist. encfs-java
+	 * tends to call exists(), isDirectory() and getFileInfo() on paths it has
+	 * just listed or created, so recently cached metadata and recent listings of
+	 * the parent directory are consulted before going to the server.
+	 */
+	private Metadata lookupMetadata(String absPath) throws DbxException {
+		long now = SystemClock.elapsedRealtime();
+
+		synchronized (metadataCache) {
+			MetaEntry entry = metadataCache.get(cacheKey(absPath));
+			if (entry != null) {
+				if (now - entry.timestamp < METADATA_CACHE_TTL_MS) {
+					return entry.meta;
+				}
+				metadataCache.remove(cacheKey(absPath));
+			}
+		}
+
+		DirListing listing = getCachedListing(parentPath(absPath));
+		if (listing != null) {
+			synchronized (listing) {
+				if (now - listing.timestamp < METADATA_CACHE_TTL_MS
+						&& !listing.dirty.contains(nameKey(absPath))) {
+					return listing.entries.get(nameKey(absPath));
+				}
+			}
+		}
+
+		Metadata meta;
+		try {
+			meta = mDbxClient.files().getMetadata(absPath);
+		} catch (GetMetadataErrorException gme) {
+			// Thrown in case of path not being found
+			if (gme.errorValue.isPath()) {
+				meta = null;
+			} else {
+				throw gme;
+			}
+		}
+
+		cacheMetadata(absPath, meta);
+		return meta;
+	}
+
+	// Apply a listFolder/listFolderContinue result to a cached listing
+	private static void applyListResult(DirListing listing, ListFolderResult res) {
+		for (Metadata entry : res.getEntries()) {
+			String key = entry.getName().toLowerCase(Locale.US);
+			if (entry instanceof DeletedMetadata) {
+				listing.entries.remove(key);
+			} else {
+				listing.entries.put(key, entry);
+			}
+			listing.dirty.remove(key);
+		}
+		listing.cursor = res.getCursor();
+	}
+
+	/*
+	 * Bring a cached listing up to date by fetching the changes made since its
+	 * cursor was issued. For an unchanged directory this is a single small
+	 * request rather than a full listing.
+	 */
+	private void refreshListing(DirListing listing) throws DbxException {
+		ListFolderResult res;
+		do {
+			res = mDbxClient.files().listFolderContinue(listing.cursor);
+			applyListResult(listing, res);
+		} while (res.getHasMore());
+	}
+
 	private void handleDbxException(DbxException e) throws IOException {
 		Logger.logException(TAG, e);
 		if (e.getMessage() != null) {
@@ -85,19 +322,45 @@ class DropboxFileProvider implements EncFSFileProvider {
 
 	@Override
 	public boolean copy(String srcPath, String dstPath) throws IOException {
+		try {
+			Metadata meta;
+
+			try {
+				meta = mDbxClient.files().copy(absPath(srcPath),
+						absPath(dstPath));
+			} catch (RelocationErrorException ree) {
+				/*
+				 * If destination path exists, delete it and try again. This is a
+				 * workaround for encfs-java behavior without chainedNameIV, the
+				 * file is touched/created before calling into this function
+				 * causing the Dropbox API to report a conflict.
+				 */
+				if (ree.errorValue.isTo()
+						&& ree.errorValue.getToValue().isConflict()) {
+					delete(dstPath);
+					meta = mDbxClient.files().copy(absPath(srcPath),
+							absPath(dstPath));
+				} else {
+					throw ree;
+				}
+			}
 
-		/*
-		 * If destination path exists, delete it first. This is a workaround for
-		 * encfs-java behavior without chainedNameIV, the file is
-		 * touched/created before calling into this function causing the Dropbox
-		 * API to return 403 Forbidden thinking that the file already exists.
-		 */
-		if (exists(dstPath)) {
-			delete(dstPath);
+			cacheMetadata(absPath(dstPath), meta);
+		} catch (DbxException e) {
+			handleDbxException(e);
 		}
 
+		return true;
+	}
+
+	// Folders are copied by the server in a single request
+	@Override
+	public boolean copyDirectory(String srcPath, String dstPath)
+			throws IOException {
 		try {
-			mDbxClient.files().copy(absPath(srcPath), absPath(dstPath));
+			Metadata meta = mDbxClient.files().copy(absPath(srcPath),
+					absPath(dstPath));
+			cacheMetadata(absPath(dstPath), meta);
 		} catch (DbxException e) {
 			handleDbxException(e);
 		}
@@ -117,6 +380,7 @@ class DropboxFileProvider implements EncFSFileProvider {
 		}
 
 		if (meta != null) {
+			cacheMetadata(absPath(path), meta);
 			return metaToFileInfo(meta);
 		}
 
@@ -131,6 +395,9 @@ class DropboxFileProvider implements EncFSFileProvider {
 			handleDbxException(e);
 		}
 
+		invalidatePath(absPath(path));
+		cacheMetadata(absPath(path), null);
+
 		return true;
 	}
 
@@ -144,17 +411,7 @@ class DropboxFileProvider implements EncFSFileProvider {
 				return true;
 			}
 
-			Metadata meta = mDbxClient.files().getMetadata(absPath(path));
-
-			return (meta != null);
-		} catch (GetMetadataErrorException gme) {
-			// Thrown in case of path not being found
-			if (gme.errorValue.isPath()) {
-				return false;
-			} else {
-				handleDbxException(gme);
-				return false;
-			}
+			return (lookupMetadata(absPath) != null);
 		} catch (DbxException e) {
 			handleDbxException(e);
 			return false;
@@ -205,7 +462,7 @@ class DropboxFileProvider implements EncFSFileProvider {
 				return null;
 			}
 
-			Metadata meta = mDbxClient.files().getMetadata(absPath);
+			Metadata meta = lookupMetadata(absPath);
 
 			if (meta != null) {
 				return metaToFileInfo(meta);
@@ -226,7 +483,7 @@ class DropboxFileProvider implements EncFSFileProvider {
 			if (absPath.equals("/")) {
 				return true;
 			}
-			Metadata meta = mDbxClient.files().getMetadata(absPath);
+			Metadata meta = lookupMetadata(absPath);
 			return (meta instanceof FolderMetadata);
 		} catch (DbxException e) {
 			handleDbxException(e);
@@ -241,30 +498,58 @@ class DropboxFileProvider implements EncFSFileProvider {
 
 			String absPath = absPath(path);
 
-			if (!absPath.equals("/")) {
-				Metadata meta = mDbxClient.files().getMetadata(absPath(path));
-
-				IOException ioe = new IOException(path + " is not a directory");
-				if (!(meta instanceof FolderMetadata)) {
-					Log.e(TAG, ioe.toString() + "\n" + Log.getStackTraceString(ioe));
-					throw ioe;
+			DirListing listing = getCachedListing(absPath);
+			if (listing != null) {
+				synchronized (listing) {
+					try {
+						refreshListing(listing);
+					} catch (ListFolderContinueErrorException e) {
+						// Cursor was reset or the folder is gone, list again
+						Log.v(TAG, "Dropping cached listing for '" + absPath
+								+ "': " + e.errorValue);
+						dropCachedListings(absPath);
+						listing = null;
+					}
 				}
-			} else {
-				// Dropbox v2 API wants root folder expressed as ""
-				absPath = "";
 			}
 
-			ListFolderResult res = null;
-			do {
-				if (res == null) {
-					res = mDbxClient.files().listFolder(absPath);
-				} else {
+			if (listing == null) {
+				String listPath = absPath;
+
+				if (absPath.equals("/")) {
+					// Dropbox v2 API wants root folder expressed as ""
+					listPath = "";
+				}
+
+				listing = new DirListing();
+
+				ListFolderResult res;
+				try {
+					res = mDbxClient.files().listFolder(listPath);
+				} catch (ListFolderErrorException lfe) {
+					if (lfe.errorValue.isPath()
+							&& lfe.errorValue.getPathValue().isNotFolder()) {
+						IOException ioe = new IOException(path
+								+ " is not a directory");
+						Log.e(TAG, ioe.toString() + "\n"
+								+ Log.getStackTraceString(ioe));
+						throw ioe;
+					}
+					throw lfe;
+				}
+				applyListResult(listing, res);
+				while (res.getHasMore()) {
 					res = mDbxClient.files().listFolderContinue(res.getCursor());
+					applyListResult(listing, res);
 				}
 
-				List<Metadata> entries = res.getEntries();
+				putCachedListing(absPath, listing);
+			}
+
+			synchronized (listing) {
+				listing.timestamp = SystemClock.elapsedRealtime();
 
-				for (Metadata entry : entries) {
+				for (Metadata entry : listing.entries.values()) {
 					try {
 						list.add(metaToFileInfo(entry));
 					} catch (IllegalArgumentException iae) {
@@ -275,7 +560,7 @@ class DropboxFileProvider implements EncFSFileProvider {
 					 */
 					}
 				}
-			} while (res.getHasMore());
+			}
 
 			return list;
 		} catch (DbxException e) {
@@ -287,7 +572,8 @@ class DropboxFileProvider implements EncFSFileProvider {
 	@Override
 	public boolean mkdir(String path) throws IOException {
 		try {
-			mDbxClient.files().createFolder(absPath(path));
+			cacheMetadata(absPath(path),
+					mDbxClient.files().createFolder(absPath(path)));
 		} catch (DbxException e) {
 			handleDbxException(e);
 		}
@@ -306,7 +592,12 @@ class DropboxFileProvider implements EncFSFileProvider {
 	@Override
 	public boolean move(String srcPath, String dstPath) throws IOException {
 		try {
-			mDbxClient.files().move(absPath(srcPath), absPath(dstPath));
+			Metadata meta = mDbxClient.files().move(absPath(srcPath),
+					absPath(dstPath));
+
+			invalidatePath(absPath(srcPath));
+			cacheMetadata(absPath(srcPath), null);
+			cacheMetadata(absPath(dstPath), meta);
 		} catch (DbxException e) {
 			handleDbxException(e);
 		}
@@ -316,8 +607,29 @@ class DropboxFileProvider implements EncFSFileProvider {
 
 	@Override
 	public InputStream openInputStream(String path) throws IOException {
+		return openInputStream(path, 0, -1);
+	}
+
+	@Override
+	public InputStream openInputStream(String path, long offset, long length)
+			throws IOException {
+		// No range can express an empty read
+		if (length == 0) {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+
 		try {
-			return mDbxClient.files().download(absPath(path)).getInputStream();
+			DbxDownloadStyleBuilder<FileMetadata> builder = mDbxClient.files()
+					.downloadBuilder(absPath(path));
+
+			// Only send a Range header when part of the file is requested
+			if (length >= 0) {
+				builder.range(offset, length);
+			} else if (offset > 0) {
+				builder.range(offset);
+			}
+
+			return builder.start().getInputStream();
 		} catch (DbxException e) {
 			handleDbxException(e);
 			return null;
@@ -327,7 +639,14 @@ class DropboxFileProvider implements EncFSFileProvider {
 	@Override
 	public OutputStream openOutputStream(String path, long length)
 			throws IOException {
-		return new DropboxOutputStream(mDbxClient, absPath(path));
+		invalidatePath(absPath(path));
+		return new DropboxOutputStream(this, mDbxClient, absPath(path),
+				length, mUploadChunkSize);
+	}
+
+	// Record a file uploaded by DropboxOutputStream
+	void fileUploaded(String absPath, FileMetadata meta) {
+		cacheMetadata(absPath, meta);
 	}
 
 	@Override
@@ -18,26 +18,78 @@
 
 package org.mrpdaemon.android.encdroid;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 import android.support.annotation.NonNull;
 import android.util.Log;
 
 import com.dropbox.core.DbxException;
 import com.dropbox.core.DbxUploader;
+import com.dropbox.core.NetworkIOException;
+import com.dropbox.core.RetryException;
+import com.dropbox.core.ServerException;
 import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.CommitInfo;
+import com.dropbox.core.v2.files.FileMetadata;
+import com.dropbox.core.v2.files.UploadSessionCursor;
+import com.dropbox.core.v2.files.UploadSessionFinishErrorException;
+import com.dropbox.core.v2.files.UploadSessionLookupError;
+import com.dropbox.core.v2.files.UploadSessionLookupErrorException;
 import com.dropbox.core.v2.files.WriteMode;
 
+/*
+ * Output stream uploading to Dropbox. Data is buffered into chunks which are
+ * sent through an upload session, so that a network error only requires the
+ * failed chunk to be sent again and files aren't limited to the 150MB maximum
+ * of a single upload request. Files that fit in a single chunk are sent with
+ * a plain upload request on close().
+ */
 class DropboxOutputStream extends OutputStream {
 
 	private static final String TAG = "DropboxOutputStream";
 
-	// Uploader object
-	private DbxUploader mUploader;
+	// Default upload chunk size
+	public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+	// Number of attempts for each request before giving up
+	private static final int MAX_ATTEMPTS = 5;
+
+	// Delay before the first retry, doubled for each further attempt
+	private static final long RETRY_INITIAL_DELAY_MS = 1000;
+
+	// File provider to notify of the uploaded file
+	private DropboxFileProvider mFileProvider;
+
+	// API object
+	private DbxClientV2 mDbxClient;
+
+	// Destination path
+	private String mDstPath;
+
+	// Upload chunk size
+	private int mChunkSize;
 
-	// Upload output stream
-	private OutputStream mUploadOutputStream;
+	// Data not yet sent to the server
+	private byte[] mBuffer;
+
+	// Number of valid bytes in mBuffer
+	private int mBufferCount;
+
+	// Buffer memory reserved from UploadChunkBudget, 0 once released
+	private int mReserved;
+
+	// Upload session ID, null until the first chunk has been sent
+	private String mSessionId;
+
+	// Number of bytes committed to the upload session
+	private long mSessionOffset;
+
+	// Whether the stream was closed
+	private boolean mClosed;
 
 	// Whether the upload failed
 	private volatile boolean failed;
@@ -45,23 +97,56 @@ class DropboxOutputStream extends OutputStream {
 	// Failure message
 	private volatile String failMessage;
 
-	DropboxOutputStream(final DbxClientV2 dbxClientV2,
-						final String dstPath) throws IOException {
+	// Uploader of the request in progress, aborted on cancellation
+	private volatile DbxUploader<?, ?, ?> mUploader = null;
+
+	// Cancel signal of the transfer writing to this stream, may be null
+	private final CancelSignal mCancelSignal;
+
+	// Fails the stream and aborts the request in progress
+	private final TransferExecutor.CancelListener mCancelListener = new TransferExecutor.CancelListener() {
+		@Override
+		public void onCancel() {
+			fail("Upload cancelled");
+
+			DbxUploader<?, ?, ?> uploader = mUploader;
+			if (uploader != null) {
+				uploader.abort();
+			}
+		}
+	};
+
+	DropboxOutputStream(final DropboxFileProvider fileProvider,
+						final DbxClientV2 dbxClientV2,
+						final String dstPath, long length, int chunkSize) {
 		this.failed = false;
+		this.mFileProvider = fileProvider;
+		this.mDbxClient = dbxClientV2;
+		this.mDstPath = dstPath;
+		this.mChunkSize = chunkSize;
 
 		Log.d(TAG, "Creating output stream for path " + dstPath);
 
-		try {
-			mUploader = dbxClientV2.files().uploadBuilder(dstPath).withMode(WriteMode.OVERWRITE).start();
-			mUploadOutputStream = mUploader.getOutputStream();
-		} catch (DbxException e) {
-			Logger.logException(TAG, e);
-			// Propagate the error
-			if (e.getMessage() != null) {
-				DropboxOutputStream.this.fail(e.getMessage());
-			} else {
-				DropboxOutputStream.this.fail(e.toString());
-			}
+		// Avoid allocating a full chunk for small files
+		int bufferSize = (int) Math.max(1, Math.min(chunkSize, length));
+		mReserved = UploadChunkBudget.reserve(bufferSize);
+		if (mReserved < bufferSize) {
+			// Other uploads are using the memory, send smaller chunks
+			mChunkSize = mReserved;
+		}
+		mBuffer = new byte[mReserved];
+		mBufferCount = 0;
+		mSessionId = null;
+		mSessionOffset = 0;
+		mClosed = false;
+
+		/*
+		 * If the transfer gets cancelled the upload session is never
+		 * committed, so nothing of the partial upload becomes visible.
+		 */
+		mCancelSignal = CancelSignal.current();
+		if (mCancelSignal != null) {
+			mCancelSignal.addListener(mCancelListener);
 		}
 	}
 
@@ -78,28 +163,250 @@ class DropboxOutputStream extends OutputStream {
 		return failMessage;
 	}
 
-	@Override
-	public void close() throws IOException {
-		Log.v(TAG, "close() called");
+	// Record the failure and convert it into an IOException
+	private IOException failWith(Exception e) {
+		Logger.logException(TAG, e);
+		if (e.getMessage() != null) {
+			fail(e.getMessage());
+		} else {
+			fail(e.toString());
+		}
+		return new IOException(getFailMessage());
+	}
 
+	/*
+	 * Called when a request failed. Transient errors are retried after an
+	 * exponentially growing delay (or the delay requested by the server) up to
+	 * MAX_ATTEMPTS, anything else is rethrown.
+	 */
+	private void retryOrThrow(int attempt, Exception e) throws DbxException,
+			IOException {
+		// Cancelled, the request failed because it was aborted
 		if (getFailed()) {
-			throw new IOException(getFailMessage());
+			throw new InterruptedIOException(getFailMessage());
+		}
+
+		boolean transientError = (e instanceof NetworkIOException)
+				|| (e instanceof RetryException)
+				|| (e instanceof ServerException)
+				|| (e instanceof IOException);
+
+		if (!transientError || attempt >= MAX_ATTEMPTS) {
+			if (e instanceof DbxException) {
+				throw (DbxException) e;
+			}
+			throw (IOException) e;
+		}
+
+		long delay = RETRY_INITIAL_DELAY_MS << (attempt - 1);
+		if (e instanceof RetryException) {
+			delay = Math.max(delay, ((RetryException) e).getBackoffMillis());
+		}
+
+		Log.w(TAG, "Attempt " + attempt + " for " + mDstPath + " failed ("
+				+ e.toString() + "), retrying in " + delay + "ms");
+
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Upload interrupted");
+		}
+	}
+
+	// Send buffered data from start on through the given uploader
+	private <R> R runUpload(DbxUploader<R, ?, ?> uploader, int start)
+			throws DbxException, IOException {
+		mUploader = uploader;
+		try {
+			if (getFailed()) {
+				uploader.abort();
+				throw new InterruptedIOException(getFailMessage());
+			}
+
+			return uploader.uploadAndFinish(new ByteArrayInputStream(mBuffer,
+					start, mBufferCount - start));
+		} finally {
+			mUploader = null;
+		}
+	}
+
+	/*
+	 * Returns the position within the buffer to resume sending from given the
+	 * offset the server expects, or -1 if the offset doesn't fall within the
+	 * data currently buffered.
+	 */
+	private int correctedStart(UploadSessionLookupError error) {
+		if (!error.isIncorrectOffset()) {
+			return -1;
+		}
+
+		long correctOffset = error.getIncorrectOffsetValue().getCorrectOffset();
+		if (correctOffset < mSessionOffset
+				|| correctOffset > mSessionOffset + mBufferCount) {
+			return -1;
+		}
+
+		Log.v(TAG, "Server has " + correctOffset + " bytes of " + mDstPath
+				+ ", resuming from there");
+
+		return (int) (correctOffset - mSessionOffset);
+	}
+
+	// Start the upload session with the buffered data
+	private void startSession() throws DbxException, IOException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				mSessionId = runUpload(
+						mDbxClient.files().uploadSessionStart(), 0)
+						.getSessionId();
+				return;
+			} catch (DbxException e) {
+				retryOrThrow(attempt, e);
+			} catch (IOException e) {
+				retryOrThrow(attempt, e);
+			}
 		}
+	}
 
-		mUploadOutputStream.flush();
-		mUploadOutputStream.close();
+	// Append the buffered data to the upload session
+	private void appendChunk() throws DbxException, IOException {
+		int start = 0;
 
+		for (int attempt = 1;; attempt++) {
+			try {
+				runUpload(
+						mDbxClient.files().uploadSessionAppendV2(
+								new UploadSessionCursor(mSessionId,
+										mSessionOffset + start)), start);
+				return;
+			} catch (UploadSessionLookupErrorException e) {
+				// A previous attempt may have been (partially) received
+				int newStart = correctedStart(e.errorValue);
+				if (newStart < 0 || attempt >= MAX_ATTEMPTS) {
+					throw e;
+				}
+				if (newStart == mBufferCount) {
+					return;
+				}
+				start = newStart;
+			} catch (DbxException e) {
+				retryOrThrow(attempt, e);
+			} catch (IOException e) {
+				retryOrThrow(attempt, e);
+			}
+		}
+	}
+
+	// Send the remaining data and commit the upload session
+	private FileMetadata finishSession() throws DbxException, IOException {
+		CommitInfo commitInfo = CommitInfo.newBuilder(mDstPath)
+				.withMode(WriteMode.OVERWRITE).build();
+		int start = 0;
+
+		for (int attempt = 1;; attempt++) {
+			try {
+				return runUpload(
+						mDbxClient.files().uploadSessionFinish(
+								new UploadSessionCursor(mSessionId,
+										mSessionOffset + start), commitInfo),
+						start);
+			} catch (UploadSessionFinishErrorException e) {
+				int newStart = -1;
+				if (e.errorValue.isLookupFailed()) {
+					newStart = correctedStart(e.errorValue
+							.getLookupFailedValue());
+				}
+				if (newStart < 0 || attempt >= MAX_ATTEMPTS) {
+					throw e;
+				}
+				start = newStart;
+			} catch (DbxException e) {
+				retryOrThrow(attempt, e);
+			} catch (IOException e) {
+				retryOrThrow(attempt, e);
+			}
+		}
+	}
+
+	// Upload a file that fit in a single chunk
+	private FileMetadata uploadSingle() throws DbxException, IOException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				return runUpload(
+						mDbxClient.files().uploadBuilder(mDstPath)
+								.withMode(WriteMode.OVERWRITE).start(), 0);
+			} catch (DbxException e) {
+				retryOrThrow(attempt, e);
+			} catch (IOException e) {
+				retryOrThrow(attempt, e);
+			}
+		}
+	}
+
+	// Send the full buffer as the next chunk of the upload session
+	private void sendChunk() throws IOException {
 		try {
-			mUploader.finish();
+			if (mSessionId == null) {
+				startSession();
+			} else {
+				appendChunk();
+			}
 		} catch (DbxException e) {
-		Logger.logException(TAG, e);
-		// Propagate the error
-		if (e.getMessage() != null) {
-			DropboxOutputStream.this.fail(e.getMessage());
-		} else {
-			DropboxOutputStream.this.fail(e.toString());
+			throw failWith(e);
+		} catch (IOException e) {
+			throw failWith(e);
 		}
+
+		Log.v(TAG, "Sent " + mBufferCount + " bytes of " + mDstPath
+				+ " at offset " + mSessionOffset);
+
+		mSessionOffset += mBufferCount;
+		mBufferCount = 0;
 	}
+
+	@Override
+	public void close() throws IOException {
+		Log.v(TAG, "close() called");
+
+		try {
+			if (getFailed()) {
+				throw new IOException(getFailMessage());
+			}
+
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+
+			try {
+				FileMetadata meta;
+				if (mSessionId == null) {
+					meta = uploadSingle();
+				} else {
+					meta = finishSession();
+				}
+				mFileProvider.fileUploaded(mDstPath, meta);
+			} catch (DbxException e) {
+				throw failWith(e);
+			} catch (IOException e) {
+				throw failWith(e);
+			}
+		} finally {
+			if (mCancelSignal != null) {
+				mCancelSignal.removeListener(mCancelListener);
+			}
+			releaseBuffer();
+		}
+	}
+
+	// Give the buffer memory back to the budget
+	private void releaseBuffer() {
+		mBuffer = null;
+		if (mReserved > 0) {
+			UploadChunkBudget.release(mReserved);
+			mReserved = 0;
+		}
 	}
 
 	@Override
@@ -109,40 +416,47 @@ class DropboxOutputStream extends OutputStream {
 		if (getFailed()) {
 			throw new IOException(getFailMessage());
 		}
-		mUploadOutputStream.flush();
 	}
 
 	@Override
 	public void write(@NonNull byte[] buffer, int offset, int count) throws IOException {
-		Log.v(TAG, "write() " + buffer.length + " bytes offset: " + offset
-				+ " count: " + count);
-
 		if (getFailed()) {
 			throw new IOException(getFailMessage());
 		}
 
-		mUploadOutputStream.write(buffer, offset, count);
-	}
+		if (mClosed) {
+			throw new IOException("Stream closed");
+		}
 
-	@Override
-	public void write(@NonNull byte[] buffer) throws IOException {
-		Log.v(TAG, "write() " + buffer.length + " bytes");
+		while (count > 0) {
+			if (mBufferCount == mBuffer.length) {
+				if (mBuffer.length < mChunkSize) {
+					// File is larger than announced, grow to a full chunk
+					int extra = UploadChunkBudget.reserve(mChunkSize
+							- mBuffer.length);
+					mReserved += extra;
+					mChunkSize = mBuffer.length + extra;
+					mBuffer = Arrays.copyOf(mBuffer, mChunkSize);
+				} else {
+					sendChunk();
+				}
+			}
 
-		if (getFailed()) {
-			throw new IOException(getFailMessage());
+			int len = Math.min(count, mBuffer.length - mBufferCount);
+			System.arraycopy(buffer, offset, mBuffer, mBufferCount, len);
+			mBufferCount += len;
+			offset += len;
+			count -= len;
 		}
+	}
 
-		mUploadOutputStream.write(buffer);
+	@Override
+	public void write(@NonNull byte[] buffer) throws IOException {
+		write(buffer, 0, buffer.length);
 	}
 
 	@Override
 	public void write(int oneByte) throws IOException {
-		Log.v(TAG, "write() " + oneByte);
-
-		if (getFailed()) {
-			throw new IOException(getFailMessage());
-		}
-
-		mUploadOutputStream.write(oneByte);
+		write(new byte[] { (byte) oneByte }, 0, 1);
 	}
-}
\ No newline at end of file
+}
@@ -44,6 +44,12 @@ public class EDApplication extends Application {
 	// PBKDF2 provider
 	private NativePBKDF2Provider mNativePBKDF2Provider;
 
+	// Maximum number of threads for cloud transfers
+	private final static int MAX_TRANSFER_THREADS = 8;
+
+	// Executor for cloud transfers and API calls
+	private TransferExecutor mTransferExecutor;
+
 	// Whether native PBKDF2 provider is available
 	private static boolean mNativePBKDF2ProviderAvailable;
 
@@ -67,6 +73,9 @@ public class EDApplication extends Application {
 	public void onCreate() {
 		super.onCreate();
 
+		// Accounts grab their transfer lanes on creation
+		this.mTransferExecutor = new TransferExecutor(MAX_TRANSFER_THREADS);
+
 		DropboxAccount dropboxAccount = new DropboxAccount(this);
 		GoogleDriveAccount driveAccount = new GoogleDriveAccount(this);
 
@@ -164,6 +173,13 @@ public class EDApplication extends Application {
 		return -1;
 	}
 
+	/**
+	 * @return the executor for cloud transfers
+	 */
+	public TransferExecutor getTransferExecutor() {
+		return mTransferExecutor;
+	}
+
 	/**
 	 * @return whether native PBKDF2 provider is available
 	 */
@@ -18,9 +18,18 @@
 
 package org.mrpdaemon.android.encdroid;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import android.app.Activity;
 import android.app.ProgressDialog;
+import android.content.DialogInterface;
+import android.content.Context;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
 
 public abstract class EDAsyncTask<Params, Progress, Result> extends
 		AsyncTask<Params, Progress, Result> {
@@ -54,6 +63,38 @@ public abstract class EDAsyncTask<Params, Progress, Result> extends
 	// Just a spinner dialog
 	protected boolean mProgressDialogSpinnerOnly = false;
 
+	// Shift applied to byte counts so they fit the dialog's int progress
+	private int mByteShift = 0;
+
+	// Cancellation state shared with the threads working for the task
+	private final CancelSignal mCancelSignal = new CancelSignal();
+
+	// Minimum time between progress dialog updates (10 per second)
+	private final static long PROGRESS_FRAME_MS = 100;
+
+	// Handler for delayed progress dialog updates
+	private final static Handler uiHandler = new Handler(Looper.getMainLooper());
+
+	// Whether a progress dialog update is already on its way
+	private final AtomicBoolean mFramePending = new AtomicBoolean(false);
+
+	// Time of the last progress dialog update
+	private volatile long mLastFrameTime = 0;
+
+	// Throughput and time remaining text, formatted by the task's threads
+	private volatile String mRateText = null;
+
+	// Rate text currently displayed
+	private String mDisplayedRateText = null;
+
+	// Publish a progress dialog update that was held back
+	private final Runnable mFrameRunnable = new Runnable() {
+		@Override
+		public void run() {
+			publishProgress((Progress[]) null);
+		}
+	};
+
 	public EDAsyncTask(TaskFragment fragment) {
 		this.mTaskFragment = fragment;
 		this.mTaskProgress = new TaskProgress();
@@ -68,6 +109,19 @@ public abstract class EDAsyncTask<Params, Progress, Result> extends
 		return mTaskProgress;
 	}
 
+	public CancelSignal getCancelSignal() {
+		return mCancelSignal;
+	}
+
+	/*
+	 * Cancel the task. Transfers in progress are aborted through the cancel
+	 * signal, the task reports the cancellation once its threads stopped.
+	 */
+	public void cancelTask() {
+		mCancelSignal.cancel();
+		cancel(true);
+	}
+
 	public void setProgressDialog(ProgressDialog progressDialog) {
 		this.mProgressDialog = progressDialog;
 
@@ -77,9 +131,64 @@ public abstract class EDAsyncTask<Params, Progress, Result> extends
 		}
 	}
 
-	// Notify that progress is updated
+	// Title describing the task, null until the progress dialog is created
+	public String getTitle() {
+		return mProgressDialogTitle;
+	}
+
+	// Whether progress is counted in files rather than bytes
+	public boolean isMultiFileProgress() {
+		return mProgressDialogMultiFile;
+	}
+
+	/*
+	 * Notify that progress is updated. May be called for every buffer from
+	 * any number of threads: updates are coalesced so the dialog is redrawn
+	 * at most every PROGRESS_FRAME_MS, and an update arriving while one is
+	 * pending is dropped since the pending one will show the latest counters.
+	 */
 	public void updateProgress() {
-		publishProgress((Progress[]) null);
+		if (!mFramePending.compareAndSet(false, true)) {
+			return;
+		}
+
+		long now = SystemClock.elapsedRealtime();
+		updateRateText(now);
+
+		long delay = mLastFrameTime + PROGRESS_FRAME_MS - now;
+		if (delay <= 0) {
+			publishProgress((Progress[]) null);
+		} else {
+			uiHandler.postDelayed(mFrameRunnable, delay);
+		}
+	}
+
+	// Sample throughput and format it along with the time remaining
+	private void updateRateText(long now) {
+		if (mProgressDialogMultiFile || mProgressDialogSpinnerOnly) {
+			return;
+		}
+
+		mTaskProgress.sampleThroughput(now);
+
+		long bytesPerSecond = mTaskProgress.getBytesPerSecond();
+		if (bytesPerSecond <= 0) {
+			mRateText = null;
+			return;
+		}
+
+		Context context = mTaskFragment.getAppContext();
+		String rate = Formatter.formatShortFileSize(context, bytesPerSecond);
+		long secondsRemaining = mTaskProgress.getSecondsRemaining();
+
+		if (secondsRemaining >= 0) {
+			mRateText = String.format(
+					context.getString(R.string.progress_rate_eta_str), rate,
+					DateUtils.formatElapsedTime(secondsRemaining));
+		} else {
+			mRateText = String.format(
+					context.getString(R.string.progress_rate_str), rate);
+		}
 	}
 
 	// Method for subclasses to create ProgressDialog
@@ -95,11 +204,47 @@ public abstract class EDAsyncTask<Params, Progress, Result> extends
 		}
 
 		dialog.setTitle(mProgressDialogTitle);
-		dialog.setCancelable(false);
+
+		// Transfers can take a long time, let the user stop them
+		if (mTaskFragment.isBackgroundTransfer()) {
+			dialog.setCancelable(true);
+			dialog.setCanceledOnTouchOutside(false);
+			dialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+				@Override
+				public void onCancel(DialogInterface dialog) {
+					cancelTask();
+				}
+			});
+			dialog.setButton(DialogInterface.BUTTON_NEGATIVE,
+					activity.getString(R.string.btn_cancel_str),
+					new DialogInterface.OnClickListener() {
+						@Override
+						public void onClick(DialogInterface dialog, int which) {
+							dialog.cancel();
+						}
+					});
+		} else {
+			dialog.setCancelable(false);
+		}
 
 		return dialog;
 	}
 
+	@Override
+	protected void onPostExecute(Result result) {
+		super.onPostExecute(result);
+		uiHandler.removeCallbacks(mFrameRunnable);
+		TransferService.transferFinished(this);
+	}
+
+	@Override
+	protected void onCancelled() {
+		super.onCancelled();
+		uiHandler.removeCallbacks(mFrameRunnable);
+		TransferService.transferFinished(this);
+		mTaskFragment.returnCancelled();
+	}
+
 	/*
 	 * Called after updateProgress() -> publishProgress() from the UI thread.
 	 * 
@@ -109,7 +254,12 @@ public abstract class EDAsyncTask<Params, Progress, Result> extends
 	protected void onProgressUpdate(Progress... values) {
 		super.onProgressUpdate(values);
 
+		// Updates from now on need a new frame
+		mLastFrameTime = SystemClock.elapsedRealtime();
+		mFramePending.set(false);
+
 		if (mProgressDialog != null) {
+			String rateText = mRateText;
 
 			// Message string
 			if ((mDisplayedTaskProgress.getCurrentJob() != mTaskProgress
@@ -117,7 +267,8 @@ public abstract class EDAsyncTask<Params, Progress, Result> extends
 					|| (mDisplayedTaskProgress.getNumJobs() != mTaskProgress
 							.getNumJobs())
 					|| (mDisplayedTaskProgress.getCurrentFileName() != mTaskProgress
-							.getCurrentFileName())) {
+							.getCurrentFileName())
+					|| (mDisplayedRateText != rateText)) {
 				String messageString = "";
 
 				if (mProgressDialogMultiJob) {
@@ -137,6 +288,11 @@ public abstract class EDAsyncTask<Params, Progress, Result> extends
 					}
 					mDisplayedTaskProgress.setCurrentFileName(mTaskProgress
 							.getCurrentFileName());
+
+					if (rateText != null) {
+						messageString += "\n" + rateText;
+					}
+					mDisplayedRateText = rateText;
 				}
 
 				mProgressDialog.setMessage(messageString);
@@ -152,7 +308,12 @@ public abstract class EDAsyncTask<Params, Progress, Result> extends
 					mDisplayedTaskProgress.setTotalFiles(mTaskProgress
 							.getTotalFiles());
 				} else {
-					mProgressDialog.setMax(mTaskProgress.getTotalBytes());
+					long totalBytes = mTaskProgress.getTotalBytes();
+					mByteShift = 0;
+					while ((totalBytes >> mByteShift) > Integer.MAX_VALUE) {
+						mByteShift++;
+					}
+					mProgressDialog.setMax((int) (totalBytes >> mByteShift));
 					mDisplayedTaskProgress.setTotalBytes(mTaskProgress
 							.getTotalBytes());
 				}
@@ -169,8 +330,8 @@ public abstract class EDAsyncTask<Params, Progress, Result> extends
 					mDisplayedTaskProgress.setCurrentFileIdx(mTaskProgress
 							.getCurrentFileIdx());
 				} else {
-					mProgressDialog
-							.setProgress(mTaskProgress.getCurrentBytes());
+					mProgressDialog.setProgress((int) (mTaskProgress
+							.getCurrentBytes() >> mByteShift));
 					mDisplayedTaskProgress.setCurrentBytes(mTaskProgress
 							.getCurrentBytes());
 				}
@@ -21,7 +21,6 @@ package org.mrpdaemon.android.encdroid;
 import java.io.File;
 
 import org.mrpdaemon.sec.encfs.EncFSFileProvider;
-import org.mrpdaemon.sec.encfs.EncFSLocalFileProvider;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -60,7 +59,7 @@ public class ExtSDFileSystem extends FileSystem {
 
 	@Override
 	public EncFSFileProvider getFileProvider(String path) {
-		return new EncFSLocalFileProvider(new File(mPrefs.getString(
+		return new LocalFileProvider(new File(mPrefs.getString(
 				"ext_sd_location", "/mnt/external1"), path));
 	}
 }
\ No newline at end of file
@@ -0,0 +1,52 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.FileDescriptor;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+/*
+ * Wrapper around Os.posix_fallocate(). Os and ErrnoException only exist
+ * since Lollipop, and older Dalvik versions reject a class referring to them
+ * in a catch clause when it's loaded. Keeping them in this class means it's
+ * only loaded on devices that have them, callers must check SDK_INT first.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class FileAllocator {
+
+	// Logger tag
+	private final static String TAG = "FileAllocator";
+
+	// Allocate length bytes for the given file, returns false if unsupported
+	static boolean allocate(FileDescriptor fd, long length, String path) {
+		try {
+			Os.posix_fallocate(fd, 0, length);
+			return true;
+		} catch (ErrnoException e) {
+			// Not supported by all file systems (e.g. FAT on SD cards)
+			Log.v(TAG, "Can't preallocate " + path + ": " + e.getMessage());
+			return false;
+		}
+	}
+}
@@ -614,7 +614,8 @@ public class FileChooserActivity extends ListActivity {
 
 	// Show a progress spinner and launch the fill task
 	private void launchFillTask() {
-		new FileChooserFillTask().execute();
+		new FileChooserFillTask().executeOnExecutor(TaskExecutors
+				.forFileSystem(mFileSystem));
 	}
 
 	public void showBrowseConfigDialog(String dir) {
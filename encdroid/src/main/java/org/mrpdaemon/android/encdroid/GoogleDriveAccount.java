@@ -40,6 +40,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.content.pm.PackageManager;
+import android.preference.PreferenceManager;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
@@ -89,15 +90,30 @@ public class GoogleDriveAccount extends Account {
 	// Drive API object
 	private Drive driveService = null;
 
+	// Request initializer adding retries to Drive API requests
+	private GoogleDriveRequestInitializer requestInitializer = null;
+
 	private boolean permissionRequestInProgress;
 
+	// Application object
+	private EDApplication mApp;
+
+	// Maximum number of concurrent transfers for this account
+	private final static int MAX_CONCURRENT_TRANSFERS = 4;
+
+	// Transfer lane for this account
+	private TransferExecutor.Lane mTransferLane;
+
 	// Create drive service
 	private void createDriveService(String accountName) {
 		android.accounts.Account[] accounts = credential.getGoogleAccountManager().getAccountManager().getAccounts();
 		credential.setSelectedAccountName(accountName);
 
+		requestInitializer = new GoogleDriveRequestInitializer(credential,
+				getMaxRetries());
+
 		driveService = new Drive.Builder(AndroidHttp.newCompatibleTransport(),
-				new GsonFactory(), credential).build();
+				new GsonFactory(), requestInitializer).build();
 
 		Log.v(TAG, "Drive service created: " + driveService.toString());
 	}
@@ -134,19 +150,19 @@ public class GoogleDriveAccount extends Account {
 		}
 	}
 
-	// Kick off authentication thread
+	// Kick off authentication task
 	private void startAuthThread(final Activity activity) {
 
 		authInProgress = true;
 
-		Thread thread = new Thread(new Runnable() {
+		mTransferLane.submit(new Runnable() {
 			@Override
 			public void run() {
 				try {
 					credential.getToken();
 
 					// Do an about request to test if the API works
-					driveService.about().get().execute();
+					driveService.about().get().setFields("user").execute();
 
 					Log.v(TAG, "Already authenticated to Google API");
 					showLoginToast(activity, LoginResult.OK);
@@ -172,12 +188,13 @@ public class GoogleDriveAccount extends Account {
 				}
 			}
 		});
-
-		thread.start();
 	}
 
 	public GoogleDriveAccount(EDApplication app) {
+		mApp = app;
 		mPrefs = app.getSharedPreferences(PREFS_KEY, 0);
+		mTransferLane = app.getTransferExecutor().getLane(getName(),
+				MAX_CONCURRENT_TRANSFERS);
 
 		linkInProgress = false;
 		authInProgress = false;
@@ -268,6 +285,9 @@ public class GoogleDriveAccount extends Account {
 
 	@Override
 	public void unLink() {
+		// Stop any transfers still running for this account
+		mTransferLane.cancelAll();
+
 		// Clear preferences
 		Editor edit = mPrefs.edit();
 		edit.clear();
@@ -281,17 +301,60 @@ public class GoogleDriveAccount extends Account {
 		accountName = null;
 		driveService = null;
 
+		// File ID's are only valid for the unlinked account
+		mApp.getDbHelper().clearAllDriveFileIds();
+
 		Log.d(TAG, "Google Drive account unlinked");
 	}
 
+	@Override
+	public int getMaxConcurrentTransfers() {
+		return MAX_CONCURRENT_TRANSFERS;
+	}
+
 	@Override
 	public String getUserName() {
 		return accountName;
 	}
 
+	// Integer valued preference stored as a string by ListPreference
+	private int getIntPref(String key, int defValue) {
+		SharedPreferences prefs = PreferenceManager
+				.getDefaultSharedPreferences(mApp);
+		try {
+			return Integer.parseInt(prefs.getString(key,
+					Integer.toString(defValue)));
+		} catch (NumberFormatException e) {
+			return defValue;
+		}
+	}
+
+	private int getMaxRetries() {
+		return getIntPref("drive_max_retries",
+				GoogleDriveRequestInitializer.DEFAULT_MAX_RETRIES);
+	}
+
+	private int getUploadChunkSize() {
+		int chunkMB = getIntPref("drive_chunk_size",
+				GoogleDriveOutputStream.DEFAULT_CHUNK_SIZE / (1024 * 1024));
+		return Math.max(1, chunkMB) * 1024 * 1024;
+	}
+
+	private boolean getAdaptiveChunkSize() {
+		return PreferenceManager.getDefaultSharedPreferences(mApp)
+				.getBoolean("drive_adaptive_chunk_size", true);
+	}
+
 	@Override
 	public EncFSFileProvider getFileProvider(String path) {
-		return new GoogleDriveFileProvider(driveService, path);
+		// Pick up retry preference changes made since the service was created
+		if (requestInitializer != null) {
+			requestInitializer.setMaxRetries(getMaxRetries());
+		}
+
+		return new GoogleDriveFileProvider(driveService, path,
+				mApp.getDbHelper(), mTransferLane, getUploadChunkSize(),
+				getAdaptiveChunkSize());
 	}
 
 	@Override
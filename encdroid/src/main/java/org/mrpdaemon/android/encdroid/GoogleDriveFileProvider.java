@@ -18,12 +18,16 @@
 
 package org.mrpdaemon.android.encdroid;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
 
 import org.mrpdaemon.sec.encfs.EncFSFileInfo;
@@ -31,15 +35,23 @@ import org.mrpdaemon.sec.encfs.EncFSFileProvider;
 
 import android.util.Log;
 
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpResponse;
+import com.google.api.client.util.ByteStreams;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.Drive.Files;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
 import com.google.api.services.drive.model.ParentReference;
 
-public class GoogleDriveFileProvider implements EncFSFileProvider {
+public class GoogleDriveFileProvider implements EncFSFileProvider,
+		RangedFileProvider {
 
 	// Logger tag
 	private final static String TAG = "GoogleDriveFileProvider";
@@ -56,9 +68,76 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 	// Standard search filter
 	private static String searchFilter = " and trashed=false";
 
+	/*
+	 * Partial response field masks. Only request the File properties that are
+	 * actually used (by fileToEncFSFileInfo(), fileIsDirectory() and
+	 * openInputStream()) since full File resources are several kilobytes of
+	 * JSON each.
+	 */
+	public final static String FILE_FIELDS = "id,title,mimeType,modifiedDate,fileSize,editable,downloadUrl";
+	private final static String LIST_FIELDS = "nextPageToken,items("
+			+ FILE_FIELDS + ")";
+	private final static String CHILD_FIELDS = "items(" + FILE_FIELDS + ")";
+
+	// Number of results to request per listing page (API maximum)
+	private final static int LIST_PAGE_SIZE = 1000;
+
 	// File ID caching (absPath -> fileId)
 	private HashMap<String, String> fileIdCache;
 
+	// DB helper for the persistent file ID index (may be null)
+	private DBHelper dbHelper;
+
+	// Transfer lane for upload tasks
+	private TransferExecutor.Lane transferLane;
+
+	// Upload chunk size
+	private int uploadChunkSize;
+
+	// Whether to adapt the upload chunk size to the measured throughput
+	private boolean adaptiveChunkSize;
+
+	// Maximum number of cached File metadata entries
+	private final static int METADATA_CACHE_SIZE = 1024;
+
+	// Time to live for cached File metadata
+	private final static long METADATA_CACHE_TTL_MS = 60 * 1000;
+
+	// File metadata caching (fileId -> File)
+	private DriveMetadataCache fileCache;
+
+	// HTTP status for a successful range request
+	private final static int HTTP_PARTIAL_CONTENT = 206;
+
+	// Maximum number of requests in a single batch (Drive API limit)
+	private final static int BATCH_MAX_REQUESTS = 100;
+
+	/*
+	 * State of a batch of delete/move requests. A batch belongs to the thread
+	 * that began it, so requests from other threads using the provider at the
+	 * same time (e.g. a transfer deleting a file it's about to replace) are
+	 * executed right away instead of joining an unrelated batch.
+	 */
+	private static class Batch {
+
+		// Batch of queued delete/move requests, null if none are pending
+		BatchRequest request = null;
+
+		// Paths touched by the pending requests (absPath -> touched only by
+		// deletes)
+		final HashMap<String, Boolean> paths = new HashMap<String, Boolean>();
+
+		// Errors reported by the pending requests
+		final ArrayList<String> errors = new ArrayList<String>();
+
+		// Titles in directories listed since the last flush (parent absPath
+		// -> titles)
+		final HashMap<String, HashSet<String>> children = new HashMap<String, HashSet<String>>();
+	}
+
+	// Batch begun by the current thread, null if it isn't batching
+	private final ThreadLocal<Batch> currentBatch = new ThreadLocal<Batch>();
+
 	// Generate absolute path for a given relative path
 	private String absPath(String relPath) {
 		// Take off leading '/' from relPath
@@ -114,8 +193,17 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 	}
 
 	// Lookup the given path in the file ID cache
-	private String fileIdCacheLookup(String path) {
+	private synchronized String fileIdCacheLookup(String path) {
 		String cachedId = fileIdCache.get(path);
+
+		// Fall back to the persistent index
+		if (cachedId == null && dbHelper != null) {
+			cachedId = dbHelper.getDriveFileId(rootPath, path);
+			if (cachedId != null) {
+				fileIdCache.put(path, cachedId);
+			}
+		}
+
 		if (cachedId == null) {
 			Log.v(TAG, "Cache lookup for path: '" + path + "' failed");
 		} else {
@@ -127,14 +215,335 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 
 	// Insert the given file ID to the cache
 	private void fileIdCacheInsert(String path, String fileId) {
-		Log.v(TAG, "Caching file ID: '" + fileId + "' for path '" + path + "'");
-		fileIdCache.put(path, fileId);
+		HashMap<String, String> entry = new HashMap<String, String>();
+		entry.put(path, fileId);
+		fileIdCacheInsert(entry);
+	}
+
+	// Insert the given set of file ID's to the cache
+	private synchronized void fileIdCacheInsert(HashMap<String, String> entries) {
+		if (entries.isEmpty()) {
+			return;
+		}
+
+		Log.v(TAG, "Caching " + entries.size() + " file ID(s)");
+		fileIdCache.putAll(entries);
+
+		if (dbHelper != null) {
+			dbHelper.cacheDriveFileIds(rootPath, entries);
+		}
+	}
+
+	// Delete the cache entries for the given path and everything under it
+	private synchronized void fileIdCacheDelete(String path) {
+		Log.v(TAG, "Deleting file ID cache entries for '" + path + "'");
+
+		String prefix = path.endsWith("/") ? path : path + "/";
+		Iterator<String> iter = fileIdCache.keySet().iterator();
+		while (iter.hasNext()) {
+			String key = iter.next();
+			if (key.equals(path) || key.startsWith(prefix)) {
+				iter.remove();
+			}
+		}
+
+		if (dbHelper != null) {
+			dbHelper.deleteDriveFileIds(rootPath, path);
+		}
+	}
+
+	// Drop all cached file ID's for this provider
+	private synchronized void fileIdCacheClear() {
+		Log.v(TAG, "Clearing file ID cache");
+		fileIdCache.clear();
+		fileCache.clear();
+		Log.v(TAG, fileCache.toString());
+
+		if (dbHelper != null) {
+			dbHelper.clearDriveFileIds(rootPath);
+		}
+	}
+
+	// Fetch the File for the given ID, going to the server on a cache miss
+	private File getFileById(String fileId) throws IOException {
+		File file = fileCache.get(fileId);
+		if (file == null) {
+			file = driveService.files().get(fileId).setFields(FILE_FIELDS)
+					.execute();
+			fileCache.put(file);
+		}
+		return file;
+	}
+
+	/*
+	 * Fetch the File for the given absolute path. File ID's from the
+	 * persistent index may have gone stale if the volume was modified by
+	 * another client, so on a 404 the entries for the path and everything
+	 * under it are dropped and the path is resolved once more.
+	 */
+	private File getFileForPath(String path) throws IOException {
+		String fileId = pathToFileId(path);
+		if (fileId == null) {
+			return null;
+		}
+
+		try {
+			return getFileById(fileId);
+		} catch (GoogleJsonResponseException e) {
+			if (e.getStatusCode() != 404) {
+				throw e;
+			}
+		}
+
+		Log.v(TAG, "Stale file ID '" + fileId + "' for path '" + path + "'");
+		fileIdCacheDelete(path);
+		fileCache.invalidate(fileId);
+
+		fileId = pathToFileId(path);
+		if (fileId == null) {
+			return null;
+		}
+
+		return getFileById(fileId);
+	}
+
+	// Callback for batched requests that records failures for flushBatch()
+	private static class MetadataBatchCallback<T> extends JsonBatchCallback<T> {
+
+		// Batch the request was queued in
+		private final Batch batch;
+
+		// Description of the request for error messages
+		private final String description;
+
+		// Whether a 404 should be treated as success
+		private final boolean ignoreNotFound;
+
+		public MetadataBatchCallback(Batch batch, String description,
+				boolean ignoreNotFound) {
+			this.batch = batch;
+			this.description = description;
+			this.ignoreNotFound = ignoreNotFound;
+		}
+
+		@Override
+		public void onSuccess(T result, HttpHeaders responseHeaders) {
+			Log.v(TAG, description + " succeeded");
+		}
+
+		@Override
+		public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+			if (ignoreNotFound && error.getCode() == 404) {
+				// Already gone, possibly deleted along with its parent
+				Log.v(TAG, description + " returned 404, ignoring");
+				return;
+			}
+
+			Log.e(TAG, description + " failed: " + error.getMessage());
+			batch.errors.add(description + ": " + error.getMessage());
+		}
+	}
+
+	// Returns whether the given absolute paths are equal or nested
+	private static boolean pathsOverlap(String path1, String path2) {
+		return path1.equals(path2) || path1.startsWith(path2 + "/")
+				|| path2.startsWith(path1 + "/");
+	}
+
+	/*
+	 * Start batching delete and move requests made by the calling thread.
+	 * Until endBatch() is called such requests are queued and sent to the
+	 * Drive batch endpoint in groups of up to BATCH_MAX_REQUESTS, with the
+	 * caches updated as if they had already succeeded. Any other request from
+	 * the same thread touching a path with a pending operation flushes the
+	 * batch first, as does any other kind of modification.
+	 */
+	public void beginBatch() {
+		if (currentBatch.get() == null) {
+			currentBatch.set(new Batch());
+		}
 	}
 
-	// Delete the cache entry for the given path
-	private void fileIdCacheDelete(String path) {
-		Log.v(TAG, "Deleting file ID cache entry for '" + path + "'");
-		fileIdCache.remove(path);
+	// Stop batching and execute any pending requests
+	public void endBatch() throws IOException {
+		if (currentBatch.get() == null) {
+			return;
+		}
+
+		try {
+			flushBatch();
+		} finally {
+			currentBatch.remove();
+		}
+	}
+
+	// Execute the calling thread's pending batch, if any
+	private void flushBatch() throws IOException {
+		Batch batch = currentBatch.get();
+		if (batch == null) {
+			return;
+		}
+
+		// Anything but a queued request may change listed directories
+		batch.children.clear();
+
+		if (batch.request == null) {
+			return;
+		}
+
+		BatchRequest request = batch.request;
+		batch.request = null;
+		batch.paths.clear();
+
+		Log.v(TAG, "Executing batch of " + request.size() + " requests");
+
+		try {
+			request.execute();
+		} catch (IOException e) {
+			batch.errors.clear();
+			fileIdCacheClear();
+			throw e;
+		}
+
+		if (!batch.errors.isEmpty()) {
+			String error = batch.errors.get(0);
+			batch.errors.clear();
+
+			// Cache entries were updated optimistically, drop them
+			fileIdCacheClear();
+			throw new IOException(error);
+		}
+	}
+
+	// Execute the pending batch if it has an operation on the given path
+	private void flushBatchFor(String absPath) throws IOException {
+		Batch batch = currentBatch.get();
+		if (batch == null) {
+			return;
+		}
+
+		for (String pendingPath : batch.paths.keySet()) {
+			if (pathsOverlap(absPath, pendingPath)) {
+				flushBatch();
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Requests within a batch may be executed by the server in any order, so a
+	 * new operation can only join the pending batch if it doesn't touch the
+	 * paths of pending operations. Deletes are the exception since deleting a
+	 * file whose parent was already deleted just returns a 404 which is
+	 * ignored.
+	 */
+	private void flushBatchConflicts(Batch batch, boolean isDelete,
+			String... absPaths) throws IOException {
+		for (String absPath : absPaths) {
+			for (Map.Entry<String, Boolean> entry : batch.paths.entrySet()) {
+				if (pathsOverlap(absPath, entry.getKey())
+						&& !(isDelete && entry.getValue())) {
+					flushBatch();
+					return;
+				}
+			}
+		}
+
+		if (batch.request != null
+				&& batch.request.size() >= BATCH_MAX_REQUESTS) {
+			flushBatch();
+		}
+	}
+
+	// Get the pending batch request to queue an operation on the given paths
+	private BatchRequest getBatchRequest(Batch batch, boolean isDelete,
+			String... absPaths) {
+		if (batch.request == null) {
+			batch.request = driveService.batch();
+		}
+
+		for (String absPath : absPaths) {
+			Boolean deleteOnly = batch.paths.get(absPath);
+			batch.paths.put(absPath, isDelete
+					&& (deleteOnly == null || deleteOnly));
+		}
+
+		return batch.request;
+	}
+
+	/*
+	 * Return the titles in the given directory, listing it once per batch and
+	 * warming the file ID cache with its children. This lets a batch of moves
+	 * check its destinations and resolve its sources without a request per
+	 * file. A listing can't go stale while in use: a queued request changing
+	 * a title in the directory makes any later request on that title flush
+	 * the batch, which drops the listings.
+	 */
+	private HashSet<String> getBatchChildren(Batch batch, String dirAbsPath)
+			throws IOException {
+		HashSet<String> titles = batch.children.get(dirAbsPath);
+		if (titles != null) {
+			return titles;
+		}
+
+		// The server doesn't reflect requests pending in this directory yet
+		flushBatchFor(dirAbsPath);
+
+		titles = new HashSet<String>();
+		String dirFileId = pathToFileId(dirAbsPath);
+		if (dirFileId != null) {
+			String prefix = dirAbsPath.endsWith("/") ? dirAbsPath
+					: dirAbsPath + "/";
+			HashMap<String, String> childIds = new HashMap<String, String>();
+
+			Files.List request = driveService.files().list()
+					.setQ("'" + dirFileId + "' in parents" + searchFilter)
+					.setFields(LIST_FIELDS).setMaxResults(LIST_PAGE_SIZE);
+			do {
+				FileList files = request.execute();
+				for (File file : files.getItems()) {
+					titles.add(file.getTitle());
+					childIds.put(prefix + file.getTitle(), file.getId());
+					fileCache.put(file);
+				}
+				request.setPageToken(files.getNextPageToken());
+			} while (request.getPageToken() != null
+					&& request.getPageToken().length() > 0);
+
+			fileIdCacheInsert(childIds);
+		}
+
+		batch.children.put(dirAbsPath, titles);
+		return titles;
+	}
+
+	// Escape a string for use as a literal in a Drive search query
+	private static String escapeQueryString(String str) {
+		return str.replace("\\", "\\\\").replace("'", "\\'");
+	}
+
+	/*
+	 * Look up a single child of the given folder by title. This only returns
+	 * the matching entry rather than listing the entire parent folder, so the
+	 * cost doesn't grow with the size of the directory.
+	 */
+	private File findChild(String parentFileId, String title)
+			throws IOException {
+		FileList childList = driveService
+				.files()
+				.list()
+				.setQ("title = '" + escapeQueryString(title) + "' and '"
+						+ parentFileId + "' in parents" + searchFilter)
+				.setFields(CHILD_FIELDS).execute();
+
+		List<File> items = childList.getItems();
+		if (items == null || items.isEmpty()) {
+			return null;
+		}
+
+		File child = items.get(0);
+		fileCache.put(child);
+		return child;
 	}
 
 	// Convert from a given path to file ID
@@ -175,60 +584,39 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 				continue;
 			}
 
-			// Not in cache, do API requests to find pathElement
-			File curFile = driveService.files().get(curFileId).execute();
-
-			if (fileIsDirectory(curFile)) {
-				// Get file list of current folder
-				FileList childList = driveService.files().list()
-						.setQ("'" + curFileId + "' in parents" + searchFilter)
-						.execute();
-
-				// Search pathElement in the list
-				boolean found = false;
-				for (File tmpFile : childList.getItems()) {
-					if (tmpFile.getTitle().equals(pathElement)) {
-						// Found pathElement
-						found = true;
-						curFileId = tmpFile.getId();
-						if (st.hasMoreTokens()) {
-							// Have more path elements, cache and continue
-							fileIdCacheInsert(curPath, curFileId);
-							break;
-						} else {
-							// Found the search target, cache and return
-							fileIdCacheInsert(path, curFileId);
-							return curFileId;
-						}
-					}
-				}
-
-				if (found == false) {
-					// A path element was not found
-					return null;
-				}
-			} else {
-				// Better be the last element!
-				if (!st.hasMoreTokens()) {
-					// Cache and return
-					fileIdCacheInsert(path, curFileId);
-					return curFileId;
-				}
+			// Not in cache, query for pathElement under the current folder
+			File child = findChild(curFileId, pathElement);
+			if (child == null) {
+				// A path element was not found
+				return null;
 			}
+
+			curFileId = child.getId();
+			fileIdCacheInsert(curPath, curFileId);
 		}
 
-		return null;
+		return curFileId;
 	}
 
-	public GoogleDriveFileProvider(Drive driveService, String rootPath) {
+	public GoogleDriveFileProvider(Drive driveService, String rootPath,
+			DBHelper dbHelper, TransferExecutor.Lane transferLane,
+			int uploadChunkSize, boolean adaptiveChunkSize) {
 		this.driveService = driveService;
 		this.rootPath = rootPath;
+		this.dbHelper = dbHelper;
+		this.transferLane = transferLane;
+		this.uploadChunkSize = uploadChunkSize;
+		this.adaptiveChunkSize = adaptiveChunkSize;
 		this.fileIdCache = new HashMap<String, String>();
+		this.fileCache = new DriveMetadataCache(METADATA_CACHE_SIZE,
+				METADATA_CACHE_TTL_MS);
 	}
 
 	@Override
 	public boolean copy(String srcPath, String dstPath) throws IOException {
 
+		flushBatch();
+
 		Log.v(TAG, "Copy '" + srcPath + "' to '" + dstPath + "'");
 
 		/*
@@ -266,10 +654,13 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 		copiedFile.setParents(parentList);
 
 		// API request for the copy
-		driveService.files().copy(fileId, copiedFile).execute();
+		File resultFile = driveService.files().copy(fileId, copiedFile)
+				.setFields(FILE_FIELDS).execute();
 
-		// Invalidate old file ID cache entry
-		fileIdCacheDelete(absPath(srcPath));
+		// Cache the new copy
+		fileIdCacheDelete(absPath(dstPath));
+		fileIdCacheInsert(absPath(dstPath), resultFile.getId());
+		fileCache.put(resultFile);
 
 		return true;
 	}
@@ -302,6 +693,8 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 
 		Log.v(TAG, "createFile '" + path + "'");
 
+		flushBatch();
+
 		// Make sure the given path doesn't exist
 		if (exists(path)) {
 			throw new IOException("Can't create file: already exists");
@@ -310,39 +703,61 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 		File newFile = prepareFileForCreation(path);
 
 		// API request
-		File createdFile = driveService.files().insert(newFile).execute();
+		File createdFile = driveService.files().insert(newFile)
+				.setFields(FILE_FIELDS).execute();
+		fileCreated(path, createdFile);
 
 		return fileToEncFSFileInfo(parentPath(path), createdFile);
 	}
 
+	// Record a file that was created at the given path
+	public void fileCreated(String path, File createdFile) {
+		fileIdCacheInsert(absPath(path), createdFile.getId());
+		fileCache.put(createdFile);
+	}
+
 	@Override
 	public boolean delete(String path) throws IOException {
+		Batch batch = currentBatch.get();
+		boolean batched = (batch != null);
+
+		if (batched) {
+			flushBatchConflicts(batch, true, absPath(path));
+		}
+
 		String fileId = pathToFileId(absPath(path));
 		if (fileId == null) {
 			throw new IOException("Can't delete file: not found");
 		}
 
-		driveService.files().delete(fileId).execute();
+		if (batched) {
+			driveService
+					.files()
+					.delete(fileId)
+					.queue(getBatchRequest(batch, true, absPath(path)),
+							new MetadataBatchCallback<Void>(batch, "Delete '"
+									+ path + "'", true));
+		} else {
+			driveService.files().delete(fileId).execute();
+		}
 
-		// Get rid of cache entry
+		// Get rid of cache entries
 		fileIdCacheDelete(absPath(path));
+		fileCache.invalidate(fileId);
 
 		return true;
 	}
 
 	@Override
 	public boolean exists(String relPath) throws IOException {
+		flushBatchFor(absPath(relPath));
 		return (pathToFileId(absPath(relPath)) != null);
 	}
 
 	@Override
 	public EncFSFileInfo getFileInfo(String relPath) throws IOException {
-		String fileId = pathToFileId(absPath(relPath));
-		if (fileId == null) {
-			return null;
-		}
-
-		File file = driveService.files().get(fileId).execute();
+		flushBatchFor(absPath(relPath));
+		File file = getFileForPath(absPath(relPath));
 		if (file == null) {
 			return null;
 		}
@@ -362,12 +777,8 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 
 	@Override
 	public boolean isDirectory(String relPath) throws IOException {
-		String fileId = pathToFileId(absPath(relPath));
-		if (fileId == null) {
-			return false;
-		}
-
-		File file = driveService.files().get(fileId).execute();
+		flushBatchFor(absPath(relPath));
+		File file = getFileForPath(absPath(relPath));
 		if (file == null) {
 			return false;
 		}
@@ -383,6 +794,7 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 		// Get file ID for path
 		String fileId;
 		try {
+			flushBatchFor(absPath(relPath));
 			fileId = pathToFileId(absPath(relPath));
 		} catch (IOException e) {
 			Log.e(TAG, "An error occurred: " + e.getMessage());
@@ -390,7 +802,8 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 		}
 
 		Files.List request = driveService.files().list()
-				.setQ("'" + fileId + "' in parents" + searchFilter);
+				.setQ("'" + fileId + "' in parents" + searchFilter)
+				.setFields(LIST_FIELDS).setMaxResults(LIST_PAGE_SIZE);
 
 		do {
 			try {
@@ -405,6 +818,13 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 		} while (request.getPageToken() != null
 				&& request.getPageToken().length() > 0);
 
+		// Warm up the file ID cache with the children of this directory
+		HashMap<String, String> childIds = new HashMap<String, String>();
+		String dirAbsPath = absPath(relPath);
+		if (!dirAbsPath.endsWith("/")) {
+			dirAbsPath += "/";
+		}
+
 		// Convert API results into EncFSFileInfo's
 		for (File file : apiResult) {
 			if (file != null) {
@@ -414,6 +834,8 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 						|| !mimeType.startsWith("application/vnd.google-apps")) {
 					try {
 						result.add(fileToEncFSFileInfo(relPath, file));
+						childIds.put(dirAbsPath + file.getTitle(), file.getId());
+						fileCache.put(file);
 					} catch (IllegalArgumentException iae) {
 						/*
 						 * Can happen if the file name is illegal, for example
@@ -425,6 +847,8 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 			}
 		}
 
+		fileIdCacheInsert(childIds);
+
 		return result;
 	}
 
@@ -433,6 +857,8 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 
 		Log.v(TAG, "mkdir '" + path + "'");
 
+		flushBatch();
+
 		// Make sure the given path doesn't exist
 		if (exists(path)) {
 			throw new IOException("Can't create directory: already exists");
@@ -461,7 +887,11 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 		newFile.setMimeType(DIRECTORY_MIME_TYPE);
 
 		// API request
-		driveService.files().insert(newFile).execute();
+		File createdDir = driveService.files().insert(newFile)
+				.setFields(FILE_FIELDS).execute();
+
+		fileIdCacheInsert(absPath(path), createdDir.getId());
+		fileCache.put(createdDir);
 
 		return true;
 	}
@@ -477,8 +907,24 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 
 		Log.v(TAG, "Move '" + srcPath + "' to '" + dstPath + "'");
 
+		Batch batch = currentBatch.get();
+		boolean batched = (batch != null);
+
 		// Make sure the destination path doesn't exist
-		if (exists(dstPath)) {
+		boolean dstExists;
+		if (batched) {
+			flushBatchConflicts(batch, false, absPath(srcPath),
+					absPath(dstPath));
+
+			// Resolve both sides from listings shared by the whole batch
+			getBatchChildren(batch, parentPath(absPath(srcPath)));
+			dstExists = getBatchChildren(batch, parentPath(absPath(dstPath)))
+					.contains(lastPathElement(dstPath));
+		} else {
+			dstExists = exists(dstPath);
+		}
+
+		if (dstExists) {
 			throw new IOException("Can't move: destination already exists");
 		}
 
@@ -506,78 +952,133 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 				+ dstParentFileId + "'");
 
 		/*
-		 * If we're doing a simple rename then the src/dst parents are the same
-		 * so we don't need to do any metadata operations.
+		 * Reparenting and renaming are done with a single patch request. If
+		 * we're doing a simple rename then the src/dst parents are the same so
+		 * the parent list is left alone.
 		 */
-		if (!dstParentFileId.equals(srcParentFileId)) {
-			// API request to add dstParentFileId to parents
-			ParentReference newParent = new ParentReference();
-			newParent.setId(dstParentFileId);
-			try {
-				ParentReference result = driveService.parents()
-						.insert(fileId, newParent).execute();
-				Log.v(TAG, "Insert returned " + result.toPrettyString());
-			} catch (IOException e) {
-				Log.e(TAG, "An error occurred: " + e.getMessage());
-				return false;
-			}
+		File file = new File();
+		boolean modified = false;
 
-			// API request to remove srcParentFileId from parents
-			try {
-				driveService.parents().delete(fileId, srcParentFileId)
-						.execute();
-			} catch (IOException e) {
-				Log.e(TAG, "An error occurred: " + e.getMessage());
-				return false;
-			}
-		}
-
-		// Rename file if needed
 		String newName = lastPathElement(dstPath);
 		if (!lastPathElement(srcPath).equals(newName)) {
 			Log.v(TAG, "Renaming '" + lastPathElement(srcPath) + "' to '"
 					+ newName + "'");
-			try {
-				File file = new File();
-				file.setTitle(newName);
+			file.setTitle(newName);
+			modified = true;
+		}
 
-				Files.Patch patchRequest = driveService.files().patch(fileId,
-						file);
-				patchRequest.setFields("title");
-				patchRequest.execute();
-			} catch (IOException e) {
-				Log.e(TAG, "An error occurred: " + e.getMessage());
-				return false;
+		Files.Patch patchRequest = driveService.files().patch(fileId, file);
+		patchRequest.setFields("id");
+
+		if (!dstParentFileId.equals(srcParentFileId)) {
+			patchRequest.setAddParents(dstParentFileId);
+			patchRequest.setRemoveParents(srcParentFileId);
+			modified = true;
+		}
+
+		if (modified) {
+			if (batched) {
+				patchRequest.queue(
+						getBatchRequest(batch, false, absPath(srcPath),
+								absPath(dstPath)),
+						new MetadataBatchCallback<File>(batch, "Move '"
+								+ srcPath + "' to '" + dstPath + "'", false));
+			} else {
+				try {
+					patchRequest.execute();
+				} catch (IOException e) {
+					Log.e(TAG, "An error occurred: " + e.getMessage());
+					return false;
+				}
 			}
 		}
 
-		// Invalidate old file ID cache entry
+		// Invalidate old file ID cache entries and cache the new location
 		fileIdCacheDelete(absPath(srcPath));
+		fileIdCacheInsert(absPath(dstPath), fileId);
+		fileCache.invalidate(fileId);
 
 		return true;
 	}
 
 	@Override
 	public InputStream openInputStream(String relPath) throws IOException {
+		return openInputStream(relPath, 0, -1);
+	}
 
-		String fileId = pathToFileId(absPath(relPath));
-		if (fileId == null) {
+	@Override
+	public InputStream openInputStream(String relPath, long offset,
+			long length) throws IOException {
+
+		flushBatchFor(absPath(relPath));
+
+		File file = getFileForPath(absPath(relPath));
+		if (file == null) {
 			return null;
 		}
 
-		File file = driveService.files().get(fileId).execute();
+		// No range can express an empty read
+		if (length == 0) {
+			return new ByteArrayInputStream(new byte[0]);
+		}
 
 		if (file.getDownloadUrl() != null && file.getDownloadUrl().length() > 0) {
 
-			HttpResponse resp = driveService.getRequestFactory()
-					.buildGetRequest(new GenericUrl(file.getDownloadUrl()))
-					.execute();
-			return resp.getContent();
+			HttpRequest request = driveService.getRequestFactory()
+					.buildGetRequest(new GenericUrl(file.getDownloadUrl()));
+
+			// Only send a Range header when part of the file is requested
+			if (length >= 0) {
+				request.getHeaders().setRange(
+						"bytes=" + offset + "-" + (offset + length - 1));
+			} else if (offset > 0) {
+				request.getHeaders().setRange("bytes=" + offset + "-");
+			}
+
+			HttpResponse resp = request.execute();
+			InputStream content = resp.getContent();
+
+			// Server ignored the range, cut the requested part out ourselves
+			if ((offset > 0 || length >= 0)
+					&& resp.getStatusCode() != HTTP_PARTIAL_CONTENT) {
+				Log.w(TAG, "Range request ignored for '" + relPath + "'");
+				long remaining = offset;
+				while (remaining > 0) {
+					long skipped = content.skip(remaining);
+					if (skipped <= 0) {
+						break;
+					}
+					remaining -= skipped;
+				}
+
+				if (length >= 0) {
+					content = ByteStreams.limit(content, length);
+				}
+			}
+
+			return content;
 		}
 
 		return null;
 	}
 
+	// Return the metadata cache for diagnostics
+	public DriveMetadataCache getMetadataCache() {
+		return fileCache;
+	}
+
+	public TransferExecutor.Lane getTransferLane() {
+		return transferLane;
+	}
+
+	public int getUploadChunkSize() {
+		return uploadChunkSize;
+	}
+
+	public boolean isAdaptiveChunkSize() {
+		return adaptiveChunkSize;
+	}
+
 	public Drive getDriveService() {
 		return driveService;
 	}
@@ -585,6 +1086,7 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 	@Override
 	public OutputStream openOutputStream(String path, long length)
 			throws IOException {
+		flushBatch();
 		return new GoogleDriveOutputStream(this, path, length);
 	}
 
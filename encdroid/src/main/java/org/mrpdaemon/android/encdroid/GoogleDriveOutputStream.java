@@ -20,25 +20,43 @@ package org.mrpdaemon.android.encdroid;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.googleapis.media.MediaHttpUploaderProgressListener;
 import com.google.api.client.http.InputStreamContent;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.model.File;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 public class GoogleDriveOutputStream extends OutputStream {
 
 	private static final String TAG = "GoogleDriveOutputStream";
 
-	// Pipe's input end to hand off to the drive service
-	private PipedInputStream pipeDrive;
+	// Size of the buffer between the writer and the upload thread
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
 
-	// Pipe's output end that this class writes to
-	private OutputStream pipeToWrite;
+	// Default upload chunk size
+	public static final int DEFAULT_CHUNK_SIZE = MediaHttpUploader.DEFAULT_CHUNK_SIZE;
+
+	// Time each chunk should take to send when adapting the chunk size
+	private static final long TARGET_CHUNK_MILLIS = 5 * 1000;
+
+	// Adaptive chunks may grow up to this multiple of the configured size
+	private static final int MAX_CHUNK_GROWTH = 4;
+
+	// Upper bound for adaptive chunks, they are buffered in memory
+	private static final int MAX_ADAPTIVE_CHUNK_SIZE = 32 * 1024 * 1024;
+
+	// Buffer handing data off to the drive service
+	private ByteRingBuffer ringBuffer;
+
+	// Output end of the buffer that this class writes to
+	private OutputStream bufferToWrite;
 
 	// Whether the upload failed
 	private volatile boolean failed;
@@ -46,8 +64,21 @@ public class GoogleDriveOutputStream extends OutputStream {
 	// Failure message
 	private volatile String failMessage;
 
-	// Thread for stopping
-	private Thread thread;
+	// Upload task
+	private Future<?> uploadTask;
+
+	// Cancel signal of the transfer writing to this stream, may be null
+	private final CancelSignal cancelSignal;
+
+	// Fails the stream and stops the upload
+	private final TransferExecutor.CancelListener cancelListener = new TransferExecutor.CancelListener() {
+		@Override
+		public void onCancel() {
+			fail("Upload cancelled");
+			ringBuffer.abort(getFailMessage());
+			uploadTask.cancel(true);
+		}
+	};
 
 	public GoogleDriveOutputStream(final GoogleDriveFileProvider fileProvider,
 			final String dstPath, final long length) throws IOException {
@@ -55,9 +86,9 @@ public class GoogleDriveOutputStream extends OutputStream {
 
 		Log.d(TAG, "Creating output stream for path " + dstPath);
 
-		// Create pipes
-		pipeDrive = new PipedInputStream();
-		pipeToWrite = new PipedOutputStream(pipeDrive);
+		// Create the buffer
+		ringBuffer = new ByteRingBuffer(DEFAULT_BUFFER_SIZE);
+		bufferToWrite = ringBuffer.getOutputStream();
 
 		// Delete file touched by encfs-java
 		if (fileProvider.exists(dstPath)) {
@@ -66,23 +97,52 @@ public class GoogleDriveOutputStream extends OutputStream {
 
 		final File newFile = fileProvider.prepareFileForCreation(dstPath);
 
-		thread = new Thread(new Runnable() {
+		uploadTask = fileProvider.getTransferLane().submit(new Runnable() {
 			@Override
 			public void run() {
+				int reserved = 0;
 				try {
 					InputStreamContent streamContent = new InputStreamContent(
-							"application/octet-stream", pipeDrive);
+							"application/octet-stream",
+							ringBuffer.getInputStream());
 					streamContent.setLength(length);
 
 					Drive.Files.Insert insert = fileProvider.getDriveService()
-							.files().insert(newFile, streamContent);
+							.files().insert(newFile, streamContent)
+							.setFields(GoogleDriveFileProvider.FILE_FIELDS);
 
 					// Use resumable upload to not time out for larger files
 					MediaHttpUploader uploader = insert.getMediaHttpUploader();
 					uploader.setDirectUploadEnabled(false);
-					uploader.setChunkSize(MediaHttpUploader.DEFAULT_CHUNK_SIZE);
 
-					insert.execute();
+					int chunkSize = roundChunkSize(fileProvider
+							.getUploadChunkSize());
+					int maxChunkSize = chunkSize;
+					if (fileProvider.isAdaptiveChunkSize()) {
+						maxChunkSize = getMaxAdaptiveChunkSize(chunkSize);
+					}
+
+					/*
+					 * The uploader buffers a whole chunk in memory, but never
+					 * more than the file. Reserve that much from the budget
+					 * shared by all uploads and shrink the chunks if needed.
+					 */
+					long bufferSize = Math.min(maxChunkSize, Math.max(length,
+							MediaHttpUploader.MINIMUM_CHUNK_SIZE));
+					reserved = UploadChunkBudget.reserve((int) bufferSize);
+					if (reserved < bufferSize) {
+						maxChunkSize = roundChunkSize(reserved);
+						chunkSize = Math.min(chunkSize, maxChunkSize);
+					}
+
+					uploader.setChunkSize(chunkSize);
+					if (fileProvider.isAdaptiveChunkSize()) {
+						uploader.setProgressListener(new AdaptiveChunkListener(
+								dstPath, maxChunkSize));
+					}
+
+					File createdFile = insert.execute();
+					fileProvider.fileCreated(dstPath, createdFile);
 
 				} catch (IOException e) {
 					if (e.getMessage() != null) {
@@ -90,11 +150,101 @@ public class GoogleDriveOutputStream extends OutputStream {
 					} else {
 						GoogleDriveOutputStream.this.fail(e.toString());
 					}
+
+					// Wake up the writer if it's waiting for buffer space
+					ringBuffer.abort(getFailMessage());
+				} finally {
+					UploadChunkBudget.release(reserved);
 				}
 			}
+		}, new TransferExecutor.CancelListener() {
+			@Override
+			public void onCancel() {
+				GoogleDriveOutputStream.this.fail("Upload cancelled");
+				ringBuffer.abort(getFailMessage());
+			}
 		});
 
-		thread.start();
+		/*
+		 * The file is only created once the whole upload went through, so a
+		 * cancelled upload leaves nothing behind.
+		 */
+		cancelSignal = CancelSignal.current();
+		if (cancelSignal != null) {
+			cancelSignal.addListener(cancelListener);
+		}
+	}
+
+	// Largest chunk adaptive uploads may grow to from the given chunk size
+	static int getMaxAdaptiveChunkSize(int chunkSize) {
+		return roundChunkSize(Math.min((long) chunkSize * MAX_CHUNK_GROWTH,
+				Math.max(chunkSize, MAX_ADAPTIVE_CHUNK_SIZE)));
+	}
+
+	// Round down to a valid chunk size (a multiple of 256KB)
+	static int roundChunkSize(long size) {
+		int minSize = MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+		return (int) Math.max(minSize, size - (size % minSize));
+	}
+
+	/*
+	 * Progress listener that resizes the upload chunks so each takes about
+	 * TARGET_CHUNK_MILLIS to send at the throughput measured for the previous
+	 * chunk. Slow or flaky links end up with small chunks so that less data is
+	 * resent after a failure, fast links get bigger chunks and fewer requests.
+	 * The time measured includes any retries, so a chunk that needed retrying
+	 * shrinks the next one.
+	 */
+	private static class AdaptiveChunkListener implements
+			MediaHttpUploaderProgressListener {
+
+		// Path being uploaded, for logging
+		private final String path;
+
+		// Largest chunk size to use
+		private final int maxChunkSize;
+
+		// Bytes uploaded and time at the previous progress update
+		private long lastBytes = 0;
+		private long lastTime = 0;
+
+		AdaptiveChunkListener(String path, int maxChunkSize) {
+			this.path = path;
+			this.maxChunkSize = maxChunkSize;
+		}
+
+		@Override
+		public void progressChanged(MediaHttpUploader uploader)
+				throws IOException {
+			long now = SystemClock.elapsedRealtime();
+
+			switch (uploader.getUploadState()) {
+			case INITIATION_COMPLETE:
+				lastTime = now;
+				lastBytes = uploader.getNumBytesUploaded();
+				break;
+			case MEDIA_IN_PROGRESS:
+				long bytes = uploader.getNumBytesUploaded();
+				long elapsed = now - lastTime;
+				if (lastTime != 0 && elapsed > 0 && bytes > lastBytes) {
+					long throughput = (bytes - lastBytes) * 1000 / elapsed;
+					int newChunkSize = roundChunkSize(Math.min(maxChunkSize,
+							throughput * TARGET_CHUNK_MILLIS / 1000));
+
+					if (newChunkSize != uploader.getChunkSize()) {
+						Log.v(TAG, "Upload of " + path + " at " + throughput
+								+ " B/s, chunk size " + uploader.getChunkSize()
+								+ " -> " + newChunkSize);
+						uploader.setChunkSize(newChunkSize);
+					}
+				}
+				lastTime = now;
+				lastBytes = bytes;
+				break;
+			default:
+				break;
+			}
+		}
 	}
 
 	private void fail(String message) {
@@ -114,20 +264,34 @@ public class GoogleDriveOutputStream extends OutputStream {
 	public void close() throws IOException {
 		Log.v(TAG, "close() called");
 
-		if (getFailed()) {
-			throw new IOException(getFailMessage());
-		}
+		try {
+			if (getFailed()) {
+				throw new IOException(getFailMessage());
+			}
 
-		pipeToWrite.flush();
+			// Let the upload thread drain the buffer and finish
+			bufferToWrite.close();
+
+			try {
+				uploadTask.get();
+			} catch (InterruptedException e) {
+				ringBuffer.abort("Upload interrupted");
+				uploadTask.cancel(true);
+				throw new IOException(e.getMessage());
+			} catch (CancellationException e) {
+				throw new IOException("Upload cancelled");
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			}
 
-		try {
-			thread.join();
-		} catch (InterruptedException e) {
-			throw new IOException(e.getMessage());
+			if (getFailed()) {
+				throw new IOException(getFailMessage());
+			}
+		} finally {
+			if (cancelSignal != null) {
+				cancelSignal.removeListener(cancelListener);
+			}
 		}
-
-		pipeToWrite.close();
-		pipeDrive.close();
 	}
 
 	@Override
@@ -137,7 +301,6 @@ public class GoogleDriveOutputStream extends OutputStream {
 		if (getFailed()) {
 			throw new IOException(getFailMessage());
 		}
-		pipeToWrite.flush();
 	}
 
 	@Override
@@ -149,7 +312,7 @@ public class GoogleDriveOutputStream extends OutputStream {
 			throw new IOException(getFailMessage());
 		}
 
-		pipeToWrite.write(buffer, offset, count);
+		bufferToWrite.write(buffer, offset, count);
 	}
 
 	@Override
@@ -160,7 +323,7 @@ public class GoogleDriveOutputStream extends OutputStream {
 			throw new IOException(getFailMessage());
 		}
 
-		pipeToWrite.write(buffer);
+		bufferToWrite.write(buffer);
 	}
 
 	@Override
@@ -171,6 +334,6 @@ public class GoogleDriveOutputStream extends OutputStream {
 			throw new IOException(getFailMessage());
 		}
 
-		pipeToWrite.write(oneByte);
+		bufferToWrite.write(oneByte);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,150 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.IOException;
+
+import android.util.Log;
+
+import com.google.api.client.http.HttpBackOffIOExceptionHandler;
+import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.client.util.Sleeper;
+
+/*
+ * Request initializer for the Drive service adding retries with randomized
+ * exponential backoff on top of the credential's authentication handling.
+ * Requests failing with an I/O error, a 429 (rate limited) or a 5xx response
+ * are retried up to the configured number of times. For resumable uploads
+ * MediaHttpUploader wraps these handlers and asks the server how much data it
+ * received before retrying, so only the failed chunk gets resent.
+ */
+public class GoogleDriveRequestInitializer implements HttpRequestInitializer {
+
+	// Logger tag
+	private final static String TAG = "GoogleDriveRequestInitializer";
+
+	// Default number of retries
+	public final static int DEFAULT_MAX_RETRIES = 5;
+
+	// Backoff parameters
+	private final static int BACKOFF_INITIAL_INTERVAL_MS = 1000;
+	private final static int BACKOFF_MAX_INTERVAL_MS = 32 * 1000;
+	private final static int BACKOFF_MAX_ELAPSED_MS = 5 * 60 * 1000;
+	private final static double BACKOFF_MULTIPLIER = 2.0;
+	private final static double BACKOFF_RANDOMIZATION = 0.5;
+
+	// HTTP status code for rate limited requests
+	private final static int HTTP_TOO_MANY_REQUESTS = 429;
+
+	// Initializer of the credential used for authentication
+	private final HttpRequestInitializer credential;
+
+	// Number of times a failed request is retried
+	private volatile int maxRetries;
+
+	// Waits out the backoff between retries
+	private volatile Sleeper sleeper = Sleeper.DEFAULT;
+
+	// Status codes worth retrying after a delay
+	private final static HttpBackOffUnsuccessfulResponseHandler.BackOffRequired RETRYABLE_STATUS = new HttpBackOffUnsuccessfulResponseHandler.BackOffRequired() {
+		@Override
+		public boolean isRequired(HttpResponse response) {
+			int status = response.getStatusCode();
+			return status == HTTP_TOO_MANY_REQUESTS || status / 100 == 5;
+		}
+	};
+
+	public GoogleDriveRequestInitializer(HttpRequestInitializer credential,
+			int maxRetries) {
+		this.credential = credential;
+		this.maxRetries = maxRetries;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	// Replace the sleeper waiting between retries, for tests
+	void setSleeper(Sleeper sleeper) {
+		this.sleeper = sleeper;
+	}
+
+	// Backoff state is per request, so build a new one each time
+	private static ExponentialBackOff newBackOff() {
+		return new ExponentialBackOff.Builder()
+				.setInitialIntervalMillis(BACKOFF_INITIAL_INTERVAL_MS)
+				.setMaxIntervalMillis(BACKOFF_MAX_INTERVAL_MS)
+				.setMaxElapsedTimeMillis(BACKOFF_MAX_ELAPSED_MS)
+				.setMultiplier(BACKOFF_MULTIPLIER)
+				.setRandomizationFactor(BACKOFF_RANDOMIZATION).build();
+	}
+
+	@Override
+	public void initialize(HttpRequest request) throws IOException {
+		// Let the credential install its token interceptor and 401 handler
+		credential.initialize(request);
+
+		int retries = maxRetries;
+		request.setNumberOfRetries(retries);
+		if (retries <= 0) {
+			return;
+		}
+
+		final HttpUnsuccessfulResponseHandler authHandler = request
+				.getUnsuccessfulResponseHandler();
+		final HttpBackOffUnsuccessfulResponseHandler backOffHandler = new HttpBackOffUnsuccessfulResponseHandler(
+				newBackOff()).setBackOffRequired(RETRYABLE_STATUS).setSleeper(
+				sleeper);
+
+		request.setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+			@Override
+			public boolean handleResponse(HttpRequest request,
+					HttpResponse response, boolean supportsRetry)
+					throws IOException {
+				// Token refresh takes precedence and is retried immediately
+				if (authHandler != null
+						&& authHandler.handleResponse(request, response,
+								supportsRetry)) {
+					return true;
+				}
+
+				if (backOffHandler.handleResponse(request, response,
+						supportsRetry)) {
+					Log.w(TAG, "Retrying " + request.getRequestMethod()
+							+ " after HTTP " + response.getStatusCode());
+					return true;
+				}
+
+				return false;
+			}
+		});
+
+		request.setIOExceptionHandler(new HttpBackOffIOExceptionHandler(
+				newBackOff()).setSleeper(sleeper));
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.mrpdaemon.sec.encfs.EncFSLocalFileProvider;
+
+/*
+ * Local file provider writing the encrypted files through a preallocated
+ * FileChannel. encfs-java passes the final encrypted length when opening
+ * the output stream, so the file can be allocated up front.
+ */
+public class LocalFileProvider extends EncFSLocalFileProvider {
+
+	// Root directory of the volume
+	private final File mRoot;
+
+	public LocalFileProvider(File rootPath) {
+		super(rootPath);
+		mRoot = rootPath.getAbsoluteFile();
+	}
+
+	@Override
+	public OutputStream openOutputStream(String encSrcFile, long outputLength)
+			throws IOException {
+		return new PreallocatedFileOutputStream(new File(mRoot, encSrcFile),
+				outputLength);
+	}
+}
@@ -21,7 +21,6 @@ package org.mrpdaemon.android.encdroid;
 import java.io.File;
 
 import org.mrpdaemon.sec.encfs.EncFSFileProvider;
-import org.mrpdaemon.sec.encfs.EncFSLocalFileProvider;
 
 import android.content.Context;
 import android.os.Environment;
@@ -50,7 +49,7 @@ public class LocalFileSystem extends FileSystem {
 
 	@Override
 	public EncFSFileProvider getFileProvider(String path) {
-		return new EncFSLocalFileProvider(new File(
+		return new LocalFileProvider(new File(
 				Environment.getExternalStorageDirectory(), path));
 	}
 }
\ No newline at end of file
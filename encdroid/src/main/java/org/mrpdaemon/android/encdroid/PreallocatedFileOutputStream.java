@@ -0,0 +1,100 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.os.Build;
+
+/*
+ * Output stream writing a local file through its FileChannel. When the final
+ * length is known up front the file's blocks are allocated before writing,
+ * so the file system can lay the file out contiguously and doesn't have to
+ * extend it on every write. On close the file is truncated to the amount of
+ * data actually written in case it came out shorter than announced.
+ */
+public class PreallocatedFileOutputStream extends OutputStream {
+
+	// Files smaller than this aren't worth the extra system call
+	private final static long MIN_PREALLOCATE_LENGTH = 256 * 1024;
+
+	// Underlying stream, kept to own the file descriptor
+	private final FileOutputStream mStream;
+
+	// Channel that data is written to
+	private final FileChannel mChannel;
+
+	// Whether the file was preallocated and needs truncating on close
+	private boolean mPreallocated = false;
+
+	// Whether the stream was closed
+	private boolean mClosed = false;
+
+	public PreallocatedFileOutputStream(File file, long length)
+			throws IOException {
+		mStream = new FileOutputStream(file);
+		mChannel = mStream.getChannel();
+
+		if (length >= MIN_PREALLOCATE_LENGTH
+				&& Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			// Only loaded here, see FileAllocator
+			mPreallocated = FileAllocator.allocate(mStream.getFD(), length,
+					file.getPath());
+		}
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int count) throws IOException {
+		ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, count);
+		while (byteBuffer.hasRemaining()) {
+			mChannel.write(byteBuffer);
+		}
+	}
+
+	@Override
+	public void write(byte[] buffer) throws IOException {
+		write(buffer, 0, buffer.length);
+	}
+
+	@Override
+	public void write(int oneByte) throws IOException {
+		write(new byte[] { (byte) oneByte }, 0, 1);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (mClosed) {
+			return;
+		}
+		mClosed = true;
+
+		try {
+			if (mPreallocated) {
+				mChannel.truncate(mChannel.position());
+			}
+		} finally {
+			mStream.close();
+		}
+	}
+}
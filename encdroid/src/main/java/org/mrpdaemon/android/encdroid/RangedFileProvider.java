@@ -0,0 +1,36 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Interface to be implemented by file providers that can read part of a file
+ * without transferring the data before it.
+ */
+public interface RangedFileProvider {
+
+	/*
+	 * Open an input stream returning length bytes of the given file starting
+	 * at offset. A negative length reads until the end of the file.
+	 */
+	public InputStream openInputStream(String path, long offset, long length)
+			throws IOException;
+}
@@ -0,0 +1,155 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+import org.mrpdaemon.sec.encfs.EncFSFileProvider;
+import org.mrpdaemon.sec.encfs.EncFSLocalFileProvider;
+
+import android.os.SystemClock;
+
+/*
+ * Copies streams using large buffers taken from a shared pool, so copying
+ * many files doesn't allocate a new buffer for each of them. Progress is
+ * reported through a callback which is only called once enough time has
+ * passed or enough data has been copied, rather than for every buffer.
+ * Copies stop with an InterruptedIOException when the transfer's cancel
+ * signal fires.
+ */
+public class StreamCopier {
+
+	// Buffer size for local volumes
+	public final static int LOCAL_BUFFER_SIZE = 64 * 1024;
+
+	// Buffer size for cloud volumes, large reads keep the connection busy
+	public final static int CLOUD_BUFFER_SIZE = 256 * 1024;
+
+	// Maximum number of idle buffers kept for each size
+	private final static int MAX_POOLED_BUFFERS = 8;
+
+	// Minimum time between progress callbacks
+	private final static long PROGRESS_INTERVAL_MS = 100;
+
+	// Report progress at least this often regardless of time
+	private final static long PROGRESS_INTERVAL_BYTES = 4 * 1024 * 1024;
+
+	// Idle buffers by size
+	private final static HashMap<Integer, ArrayDeque<byte[]>> bufferPool = new HashMap<Integer, ArrayDeque<byte[]>>();
+
+	// Callback for copy progress
+	public interface ProgressCallback {
+		// Called with the number of bytes copied since the last call
+		public void bytesCopied(long bytes);
+	}
+
+	// Return the buffer size to use when copying to/from the given provider
+	public static int getBufferSize(EncFSFileProvider provider) {
+		if (provider instanceof EncFSLocalFileProvider) {
+			return LOCAL_BUFFER_SIZE;
+		}
+		return CLOUD_BUFFER_SIZE;
+	}
+
+	// Take a buffer of the given size from the pool or allocate one
+	public static byte[] acquireBuffer(int size) {
+		synchronized (bufferPool) {
+			ArrayDeque<byte[]> buffers = bufferPool.get(size);
+			if (buffers != null && !buffers.isEmpty()) {
+				return buffers.pop();
+			}
+		}
+		return new byte[size];
+	}
+
+	// Return a buffer to the pool
+	public static void releaseBuffer(byte[] buffer) {
+		synchronized (bufferPool) {
+			ArrayDeque<byte[]> buffers = bufferPool.get(buffer.length);
+			if (buffers == null) {
+				buffers = new ArrayDeque<byte[]>();
+				bufferPool.put(buffer.length, buffers);
+			}
+			if (buffers.size() < MAX_POOLED_BUFFERS) {
+				buffers.push(buffer);
+			}
+		}
+	}
+
+	/*
+	 * Copy everything from the input stream to the output stream, returning
+	 * the number of bytes copied. The streams are left open.
+	 */
+	public static long copy(InputStream is, OutputStream os, int bufferSize,
+			ProgressCallback callback) throws IOException {
+		byte[] buf = acquireBuffer(bufferSize);
+		long total = 0;
+		long unreported = 0;
+		long lastReport = SystemClock.elapsedRealtime();
+
+		try {
+			int bytesRead;
+			while ((bytesRead = is.read(buf)) >= 0) {
+				// A buffer takes milliseconds, so this stops promptly
+				CancelSignal.throwIfCurrentCancelled();
+
+				os.write(buf, 0, bytesRead);
+				total += bytesRead;
+
+				if (callback != null) {
+					unreported += bytesRead;
+
+					long now = SystemClock.elapsedRealtime();
+					if (now - lastReport >= PROGRESS_INTERVAL_MS
+							|| unreported >= PROGRESS_INTERVAL_BYTES) {
+						callback.bytesCopied(unreported);
+						unreported = 0;
+						lastReport = now;
+					}
+				}
+			}
+		} finally {
+			releaseBuffer(buf);
+
+			if (callback != null && unreported > 0) {
+				callback.bytesCopied(unreported);
+			}
+		}
+
+		return total;
+	}
+
+	// Copy the input stream to the output stream and close both
+	public static long copyAndClose(InputStream is, OutputStream os,
+			int bufferSize, ProgressCallback callback) throws IOException {
+		try {
+			try {
+				return copy(is, os, bufferSize, callback);
+			} finally {
+				is.close();
+			}
+		} finally {
+			os.close();
+		}
+	}
+}
@@ -0,0 +1,297 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mrpdaemon.android.encdroid;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mrpdaemon.sec.encfs.EncFSVolume;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * App-wide policy for where background tasks run. AsyncTask.execute() runs
+ * every task of the app on a single thread, so a slow cloud listing would
+ * hold up unlocking a volume or filling a local directory. Instead tasks are
+ * run on separate pools by the resource they mostly wait on: the network,
+ * the CPU for key derivation and encryption, or local storage. Long
+ * transfers get a pool of their own so they can't starve interactive tasks.
+ *
+ * Each pool keeps metrics on its queue depth and on how long tasks waited
+ * before starting, and logs tasks that had to wait for a long time.
+ *
+ * An EncFSVolume isn't thread-safe (it shares one Mac and one Cipher between
+ * all operations), so tasks working on a volume instance go through that
+ * volume's serial queue on top of the pools. Tasks that need to run beside
+ * them, like transfers, work on their own copy of the volume instead.
+ */
+public class TaskExecutors {
+
+	// Logger tag
+	private final static String TAG = "TaskExecutors";
+
+	// Tasks waiting longer than this to start are logged
+	private final static long SLOW_START_MS = 500;
+
+	// Time after which idle threads are stopped
+	private final static long KEEP_ALIVE_SECONDS = 30;
+
+	// Number of CPU cores
+	private final static int NUM_CPUS = Runtime.getRuntime()
+			.availableProcessors();
+
+	/*
+	 * Thread pool that records queueing metrics for the tasks it runs.
+	 */
+	public static class Pool implements Executor {
+
+		// Pool name
+		private final String mName;
+
+		// Underlying thread pool
+		private final ThreadPoolExecutor mPool;
+
+		// Number of tasks submitted
+		private final AtomicLong mSubmitted = new AtomicLong(0);
+
+		// Number of tasks that started running
+		private final AtomicLong mStarted = new AtomicLong(0);
+
+		// Number of tasks that finished running
+		private final AtomicLong mCompleted = new AtomicLong(0);
+
+		// Total and longest time tasks waited before starting
+		private final AtomicLong mTotalWaitMs = new AtomicLong(0);
+		private final AtomicLong mMaxWaitMs = new AtomicLong(0);
+
+		// Largest number of tasks seen waiting in the queue
+		private final AtomicInteger mMaxQueueDepth = new AtomicInteger(0);
+
+		Pool(final String name, int numThreads) {
+			mName = name;
+
+			final AtomicInteger threadCount = new AtomicInteger(0);
+			mPool = new ThreadPoolExecutor(numThreads, numThreads,
+					KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							return new Thread(runnable, name + " #"
+									+ threadCount.incrementAndGet());
+						}
+					});
+			mPool.allowCoreThreadTimeOut(true);
+		}
+
+		@Override
+		public void execute(final Runnable command) {
+			final long queuedAt = SystemClock.elapsedRealtime();
+			mSubmitted.incrementAndGet();
+
+			mPool.execute(new Runnable() {
+				@Override
+				public void run() {
+					long waitMs = SystemClock.elapsedRealtime() - queuedAt;
+					recordWait(waitMs);
+
+					try {
+						command.run();
+					} finally {
+						mCompleted.incrementAndGet();
+					}
+				}
+			});
+
+			int depth = mPool.getQueue().size();
+			int maxDepth;
+			while (depth > (maxDepth = mMaxQueueDepth.get())) {
+				if (mMaxQueueDepth.compareAndSet(maxDepth, depth)) {
+					break;
+				}
+			}
+		}
+
+		private void recordWait(long waitMs) {
+			mStarted.incrementAndGet();
+			mTotalWaitMs.addAndGet(waitMs);
+
+			long maxWait;
+			while (waitMs > (maxWait = mMaxWaitMs.get())) {
+				if (mMaxWaitMs.compareAndSet(maxWait, waitMs)) {
+					break;
+				}
+			}
+
+			if (waitMs >= SLOW_START_MS) {
+				Log.d(TAG, "Task waited " + waitMs + "ms to start: " + this);
+			}
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		// Number of tasks waiting for a thread
+		public int getQueueDepth() {
+			return mPool.getQueue().size();
+		}
+
+		// Largest number of tasks seen waiting for a thread
+		public int getMaxQueueDepth() {
+			return mMaxQueueDepth.get();
+		}
+
+		// Number of tasks currently running
+		public int getActiveCount() {
+			return mPool.getActiveCount();
+		}
+
+		public long getSubmittedCount() {
+			return mSubmitted.get();
+		}
+
+		public long getCompletedCount() {
+			return mCompleted.get();
+		}
+
+		// Average time tasks waited before starting
+		public long getAverageWaitMs() {
+			long started = mStarted.get();
+			if (started == 0) {
+				return 0;
+			}
+			return mTotalWaitMs.get() / started;
+		}
+
+		// Longest time a task waited before starting
+		public long getMaxWaitMs() {
+			return mMaxWaitMs.get();
+		}
+
+		@Override
+		public String toString() {
+			return mName + " [active: " + getActiveCount() + ", queued: "
+					+ getQueueDepth() + " (max " + getMaxQueueDepth()
+					+ "), completed: " + getCompletedCount() + ", wait avg: "
+					+ getAverageWaitMs() + "ms max: " + getMaxWaitMs() + "ms]";
+		}
+	}
+
+	/*
+	 * Executor running its tasks one at a time, in order, on a pool. Works
+	 * like AsyncTask.SERIAL_EXECUTOR but doesn't hold up unrelated tasks.
+	 */
+	private static class SerialExecutor implements Executor {
+
+		// Pool running the tasks
+		private final Executor mPool;
+
+		// Tasks waiting for the running one
+		private final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+
+		// Task currently handed to the pool
+		private Runnable mActive = null;
+
+		SerialExecutor(Executor pool) {
+			mPool = pool;
+		}
+
+		@Override
+		public synchronized void execute(final Runnable command) {
+			mTasks.offer(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						command.run();
+					} finally {
+						scheduleNext();
+					}
+				}
+			});
+			if (mActive == null) {
+				scheduleNext();
+			}
+		}
+
+		private synchronized void scheduleNext() {
+			mActive = mTasks.poll();
+			if (mActive != null) {
+				mPool.execute(mActive);
+			}
+		}
+	}
+
+	// Serial queues of unlocked volumes, dropped along with the volume
+	private final static Map<EncFSVolume, SerialExecutor> volumeQueues = new WeakHashMap<EncFSVolume, SerialExecutor>();
+
+	// Tasks mostly waiting on cloud API calls
+	public final static Pool NETWORK = new Pool("Network", 4);
+
+	// Key derivation and other CPU bound work, one thread per core
+	public final static Pool CRYPTO = new Pool("Crypto", Math.max(1,
+			Math.min(4, NUM_CPUS)));
+
+	// Tasks on local storage, which doesn't gain from many parallel requests
+	public final static Pool DISK = new Pool("Disk", 2);
+
+	// Long running transfers, see TransferService
+	public final static Pool TRANSFER = new Pool("Transfer", 3);
+
+	// Return the pool for tasks listing or modifying the given file system
+	public static Pool forFileSystem(FileSystem fileSystem) {
+		if (fileSystem != null && fileSystem.getAccount() != null) {
+			return NETWORK;
+		}
+		return DISK;
+	}
+
+	/*
+	 * Return the serial queue for tasks using the given volume's EncFSVolume
+	 * instance, running on the pool for its file system.
+	 */
+	public static Executor forVolume(Volume volume) {
+		synchronized (volumeQueues) {
+			SerialExecutor queue = volumeQueues.get(volume.getVolume());
+			if (queue == null) {
+				queue = new SerialExecutor(forFileSystem(volume
+						.getFileSystem()));
+				volumeQueues.put(volume.getVolume(), queue);
+			}
+			return queue;
+		}
+	}
+
+	// Log the metrics of all pools
+	public static void logStats() {
+		Log.d(TAG, NETWORK.toString());
+		Log.d(TAG, CRYPTO.toString());
+		Log.d(TAG, DISK.toString());
+		Log.d(TAG, TRANSFER.toString());
+	}
+}
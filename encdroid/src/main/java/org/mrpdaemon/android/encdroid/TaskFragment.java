@@ -1,8 +1,11 @@
 package org.mrpdaemon.android.encdroid;
 
+import java.util.concurrent.Executor;
+
 import android.app.Activity;
 import android.app.Fragment;
 import android.app.ProgressDialog;
+import android.content.Context;
 import android.os.ConditionVariable;
 import android.util.Log;
 
@@ -39,6 +42,9 @@ public abstract class TaskFragment extends Fragment {
 	// Condition variable for safely calling Activity methods
 	private ConditionVariable mActivityCond;
 
+	// Application context for resources when no Activity is attached
+	private Context mAppContext;
+
 	// Logger tag
 	private static final String TAG = "TaskFragment";
 
@@ -50,6 +56,7 @@ public abstract class TaskFragment extends Fragment {
 		this.mCallback = (TaskResultListener) activity;
 
 		this.mActivityCond = new ConditionVariable();
+		this.mAppContext = activity.getApplicationContext();
 
 		// retain this fragment across multiple Activities
 		setRetainInstance(true);
@@ -59,7 +66,12 @@ public abstract class TaskFragment extends Fragment {
 	public void startTask() {
 		mAsyncTask = createTask();
 		mTaskStarted = true;
-		mAsyncTask.execute();
+
+		if (isBackgroundTransfer()) {
+			TransferService.startTransfer(mActivity, mAsyncTask);
+		} else {
+			mAsyncTask.executeOnExecutor(getExecutor());
+		}
 	}
 
 	/*
@@ -78,9 +90,27 @@ public abstract class TaskFragment extends Fragment {
 		return mTaskComplete;
 	}
 
+	// Application context, usable from any thread
+	public Context getAppContext() {
+		return mAppContext;
+	}
+
 	// Method for subclasses to return task ID
 	protected abstract int getTaskId();
 
+	/*
+	 * Whether the task is a long transfer to be run by TransferService, so it
+	 * keeps running when the user leaves the app.
+	 */
+	protected boolean isBackgroundTransfer() {
+		return false;
+	}
+
+	// Pool to run the task on, see TaskExecutors
+	protected Executor getExecutor() {
+		return TaskExecutors.DISK;
+	}
+
 	// Method for subclasses to create the async task
 	protected abstract EDAsyncTask<Void, Void, ?> createTask();
 
@@ -101,6 +131,12 @@ public abstract class TaskFragment extends Fragment {
 
 	// Method for the AsyncTask to return an error
 	protected void returnError(String errorText) {
+		// Errors caused by cancelling are reported by returnCancelled()
+		if (mAsyncTask != null && mAsyncTask.isCancelled()) {
+			Log.d(TAG, "Ignoring error of cancelled task: " + errorText);
+			return;
+		}
+
 		mTaskComplete = true;
 
 		if (mCallback != null) {
@@ -113,6 +149,21 @@ public abstract class TaskFragment extends Fragment {
 		}
 	}
 
+	// Method for the AsyncTask to report that it was cancelled
+	protected void returnCancelled() {
+		mTaskComplete = true;
+
+		if (mCallback != null) {
+			mCallback.onTaskError(mTaskId,
+					mAppContext.getString(R.string.transfer_cancelled));
+		}
+
+		if (mProgDialog != null) {
+			mProgDialog.dismiss();
+			mProgDialog = null;
+		}
+	}
+
 	// Method for AsyncTask to block until an Activity is attached
 	protected void blockForActivity() {
 		mActivityCond.block();
@@ -120,6 +171,11 @@ public abstract class TaskFragment extends Fragment {
 
 	// Safe Fragment.getString() equivalent for AsyncTask to wait for Activity
 	public final String getStringSafe(int resId) {
+		// Background transfers may outlive the activity, don't wait for it
+		if (isBackgroundTransfer()) {
+			return mAppContext.getString(resId);
+		}
+
 		blockForActivity();
 		return super.getString(resId);
 	}
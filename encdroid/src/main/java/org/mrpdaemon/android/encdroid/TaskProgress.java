@@ -1,39 +1,60 @@
 package org.mrpdaemon.android.encdroid;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 // Class representing the progress of a task
 public class TaskProgress {
 
+	// Minimum time between throughput samples
+	private final static long SAMPLE_INTERVAL_MS = 500;
+
+	// Weight of the newest sample in the smoothed throughput
+	private final static double SAMPLE_WEIGHT = 0.3;
+
+	/*
+	 * Counters are updated by several transfer threads at once, so they're
+	 * atomic rather than guarded by a lock.
+	 */
+
 	// Current job out of a multiple selection
-	private int currentJob = 0;
+	private final AtomicInteger currentJob = new AtomicInteger(0);
 
 	// Total number of jobs for the multiple selection
-	private int numJobs = 0;
+	private volatile int numJobs = 0;
 
 	// Current file out of multiple files
-	private int currentFileIdx = 0;
+	private final AtomicInteger currentFileIdx = new AtomicInteger(0);
 
 	// Total number of files
-	private int totalFiles = 0;
+	private volatile int totalFiles = 0;
 
-	// Byte position in current file
-	private int currentBytes = 0;
+	// Bytes transferred so far in the current file or transfer
+	private final AtomicLong currentBytes = new AtomicLong(0);
 
-	// Total length of current file
-	private int totalBytes = 0;
+	// Total length of the current file or transfer
+	private volatile long totalBytes = 0;
 
 	// Name of the current file
-	private String currentFileName = "";
+	private volatile String currentFileName = "";
+
+	// Time and byte count of the last throughput sample
+	private long lastSampleTime = 0;
+	private long lastSampleBytes = 0;
+
+	// Smoothed throughput in bytes per second, 0 if unknown
+	private volatile long bytesPerSecond = 0;
 
 	public int getCurrentJob() {
-		return currentJob;
+		return currentJob.get();
 	}
 
 	public void setCurrentJob(int currentJob) {
-		this.currentJob = currentJob;
+		this.currentJob.set(currentJob);
 	}
 
 	public void incCurrentJob() {
-		this.currentJob++;
+		this.currentJob.incrementAndGet();
 	}
 
 	public int getNumJobs() {
@@ -45,15 +66,15 @@ public class TaskProgress {
 	}
 
 	public int getCurrentFileIdx() {
-		return currentFileIdx;
+		return currentFileIdx.get();
 	}
 
 	public void setCurrentFileIdx(int currentFileIdx) {
-		this.currentFileIdx = currentFileIdx;
+		this.currentFileIdx.set(currentFileIdx);
 	}
 
 	public void incCurrentFileIdx() {
-		this.currentFileIdx++;
+		this.currentFileIdx.incrementAndGet();
 	}
 
 	public int getTotalFiles() {
@@ -64,23 +85,23 @@ public class TaskProgress {
 		this.totalFiles = totalFiles;
 	}
 
-	public int getCurrentBytes() {
-		return currentBytes;
+	public long getCurrentBytes() {
+		return currentBytes.get();
 	}
 
-	public void setCurrentBytes(int currentBytes) {
-		this.currentBytes = currentBytes;
+	public void setCurrentBytes(long currentBytes) {
+		this.currentBytes.set(currentBytes);
 	}
 
-	public void incCurrentBytes(int bytes) {
-		this.currentBytes += bytes;
+	public void incCurrentBytes(long bytes) {
+		this.currentBytes.addAndGet(bytes);
 	}
 
-	public int getTotalBytes() {
+	public long getTotalBytes() {
 		return totalBytes;
 	}
 
-	public void setTotalBytes(int totalBytes) {
+	public void setTotalBytes(long totalBytes) {
 		this.totalBytes = totalBytes;
 	}
 
@@ -91,4 +112,52 @@ public class TaskProgress {
 	public void setCurrentFileName(String currentFileName) {
 		this.currentFileName = currentFileName;
 	}
-}
\ No newline at end of file
+
+	/*
+	 * Update the throughput estimate from the bytes transferred since the
+	 * previous sample. Called from the transfer threads as progress is
+	 * reported, so the UI thread only has to read the result.
+	 */
+	public synchronized void sampleThroughput(long now) {
+		long bytes = currentBytes.get();
+
+		if (lastSampleTime == 0 || bytes < lastSampleBytes) {
+			// First sample, or the counter was reset for a new transfer
+			lastSampleTime = now;
+			lastSampleBytes = bytes;
+			bytesPerSecond = 0;
+			return;
+		}
+
+		long elapsed = now - lastSampleTime;
+		if (elapsed < SAMPLE_INTERVAL_MS) {
+			return;
+		}
+
+		long rate = (bytes - lastSampleBytes) * 1000 / elapsed;
+		if (bytesPerSecond == 0) {
+			bytesPerSecond = rate;
+		} else {
+			bytesPerSecond = (long) (bytesPerSecond * (1 - SAMPLE_WEIGHT) + rate
+					* SAMPLE_WEIGHT);
+		}
+
+		lastSampleTime = now;
+		lastSampleBytes = bytes;
+	}
+
+	// Smoothed throughput in bytes per second, 0 if not known yet
+	public long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	// Estimated seconds until all bytes are transferred, -1 if unknown
+	public long getSecondsRemaining() {
+		long rate = bytesPerSecond;
+		long remaining = totalBytes - currentBytes.get();
+		if (rate <= 0 || remaining < 0) {
+			return -1;
+		}
+		return remaining / rate;
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/*
+ * Shared thread pool for cloud transfers and API calls. Work is submitted
+ * through named lanes (one per account) which each limit how many of their
+ * tasks may run at once, so a bulk operation on one account can neither
+ * create unbounded numbers of threads nor starve the other accounts. Idle
+ * threads time out so the pool costs nothing when no transfers are running.
+ */
+public class TransferExecutor {
+
+	// Logger tag
+	private final static String TAG = "TransferExecutor";
+
+	// Time after which idle threads are stopped
+	private final static long KEEP_ALIVE_SECONDS = 30;
+
+	// Underlying thread pool
+	private final ThreadPoolExecutor mPool;
+
+	// Lanes by name
+	private final HashMap<String, Lane> mLanes = new HashMap<String, Lane>();
+
+	// Listener notified when a task gets cancelled
+	public interface CancelListener {
+		public void onCancel();
+	}
+
+	/*
+	 * A lane queues its tasks and hands them to the pool while fewer than
+	 * maxConcurrent of them are running.
+	 */
+	public class Lane {
+
+		// Lane name
+		private final String mName;
+
+		// Maximum number of tasks running at once
+		private final int mMaxConcurrent;
+
+		// Tasks waiting for a free slot
+		private final LinkedList<FutureTask<?>> mPending = new LinkedList<FutureTask<?>>();
+
+		// Tasks submitted and not yet finished
+		private final ArrayList<FutureTask<?>> mActive = new ArrayList<FutureTask<?>>();
+
+		// Number of tasks currently handed to the pool
+		private int mRunning = 0;
+
+		private Lane(String name, int maxConcurrent) {
+			mName = name;
+			mMaxConcurrent = maxConcurrent;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		// Submit a task returning a result
+		public <T> Future<T> submit(Callable<T> task) {
+			LaneTask<T> laneTask = new LaneTask<T>(this, task);
+			enqueue(laneTask);
+			return laneTask;
+		}
+
+		// Submit a task with no result
+		public Future<?> submit(Runnable task) {
+			return submit(task, null);
+		}
+
+		/*
+		 * Submit a task with no result, calling the given listener if the task
+		 * gets cancelled. This allows unblocking whoever is waiting on a task
+		 * that may never run.
+		 */
+		public Future<?> submit(Runnable task, CancelListener listener) {
+			LaneTask<Void> laneTask = new LaneTask<Void>(this, task);
+			laneTask.mCancelListener = listener;
+			enqueue(laneTask);
+			return laneTask;
+		}
+
+		// Cancel all queued and running tasks in this lane
+		public void cancelAll() {
+			ArrayList<FutureTask<?>> tasks;
+			synchronized (this) {
+				tasks = new ArrayList<FutureTask<?>>(mActive);
+			}
+
+			if (!tasks.isEmpty()) {
+				Log.d(TAG, "Cancelling " + tasks.size() + " tasks in lane "
+						+ mName);
+			}
+
+			for (FutureTask<?> task : tasks) {
+				task.cancel(true);
+			}
+		}
+
+		// Number of tasks queued or running
+		public synchronized int getActiveCount() {
+			return mActive.size();
+		}
+
+		private void enqueue(FutureTask<?> task) {
+			synchronized (this) {
+				mActive.add(task);
+				mPending.add(task);
+			}
+			dispatch();
+		}
+
+		// Hand pending tasks to the pool while there are free slots
+		private void dispatch() {
+			while (true) {
+				FutureTask<?> next;
+				synchronized (this) {
+					if (mRunning >= mMaxConcurrent || mPending.isEmpty()) {
+						return;
+					}
+					next = mPending.removeFirst();
+					mRunning++;
+				}
+				mPool.execute(next);
+			}
+		}
+
+		// Called when a task handed to the pool has returned from run()
+		private void taskFinished(FutureTask<?> task) {
+			synchronized (this) {
+				mActive.remove(task);
+				mRunning--;
+			}
+			dispatch();
+		}
+
+		/*
+		 * Called when a task was cancelled. Tasks already handed to the pool
+		 * release their slot from taskFinished() since the pool still calls
+		 * run() on them, those still queued here are simply dropped.
+		 */
+		private synchronized void taskCancelled(FutureTask<?> task) {
+			if (mPending.remove(task)) {
+				mActive.remove(task);
+			}
+		}
+	}
+
+	// FutureTask that releases its lane slot when done
+	private static class LaneTask<T> extends FutureTask<T> {
+
+		// Owning lane
+		private final Lane mLane;
+
+		// Listener to notify on cancellation
+		private volatile CancelListener mCancelListener = null;
+
+		LaneTask(Lane lane, Callable<T> callable) {
+			super(callable);
+			mLane = lane;
+		}
+
+		LaneTask(Lane lane, Runnable runnable) {
+			super(runnable, null);
+			mLane = lane;
+		}
+
+		@Override
+		public void run() {
+			try {
+				super.run();
+			} finally {
+				mLane.taskFinished(this);
+			}
+		}
+
+		@Override
+		protected void done() {
+			if (isCancelled()) {
+				mLane.taskCancelled(this);
+				if (mCancelListener != null) {
+					mCancelListener.onCancel();
+				}
+			}
+		}
+	}
+
+	public TransferExecutor(int maxThreads) {
+		final AtomicInteger threadCount = new AtomicInteger(0);
+
+		mPool = new ThreadPoolExecutor(maxThreads, maxThreads,
+				KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "Transfer #"
+								+ threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		mPool.allowCoreThreadTimeOut(true);
+	}
+
+	// Return the lane with the given name, creating it if needed
+	public synchronized Lane getLane(String name, int maxConcurrent) {
+		Lane lane = mLanes.get(name);
+		if (lane == null) {
+			lane = new Lane(name, maxConcurrent);
+			mLanes.put(name, lane);
+		}
+		return lane;
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+
+import android.util.Log;
+
+/*
+ * Persistent record of the files of a recursive import or export and how
+ * far each of them got. A transfer is identified by its type, volume,
+ * sources and destination, so starting the same transfer again after it was
+ * interrupted picks up its journal: completed files are skipped and files
+ * that were partially written are transferred again from the start.
+ * Directories are journaled as they are created so a resumed run can tell
+ * them from ones that existed before. The journal is deleted once the
+ * transfer completes.
+ */
+public class TransferJournal {
+
+	// Logger tag
+	private final static String TAG = "TransferJournal";
+
+	// File states
+	public final static int STATE_PENDING = 0;
+	public final static int STATE_STARTED = 1;
+	public final static int STATE_DONE = 2;
+
+	// Journals untouched for this long are abandoned and deleted
+	private final static long MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+	// DB helper
+	private final DBHelper mDbHelper;
+
+	// Identifier of the transfer
+	private final String mTransfer;
+
+	// File states recorded by an earlier run of the transfer
+	private final Map<String, Integer> mStates;
+
+	/*
+	 * Open the journal of the transfer identified by the given strings,
+	 * loading what an earlier run of it recorded.
+	 */
+	public TransferJournal(DBHelper dbHelper, String... transferKey) {
+		mDbHelper = dbHelper;
+		mTransfer = hashKey(transferKey);
+
+		mDbHelper.pruneJournals(System.currentTimeMillis() - MAX_AGE_MS);
+		mStates = mDbHelper.getJournalStates(mTransfer);
+
+		if (!mStates.isEmpty()) {
+			Log.d(TAG, "Resuming transfer " + mTransfer + " with "
+					+ mStates.size() + " journaled files");
+		}
+	}
+
+	// Reduce the transfer key to a fixed length identifier
+	private static String hashKey(String... transferKey) {
+		StringBuilder key = new StringBuilder();
+		for (String part : transferKey) {
+			key.append(part).append('\0');
+		}
+
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(key.toString().getBytes("UTF-8"));
+
+			StringBuilder hex = new StringBuilder();
+			for (byte b : hash) {
+				hex.append(String.format("%02x", b & 0xff));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// Whether an earlier run completed the file with the given source
+	public boolean isDone(Object src) {
+		Integer state = mStates.get(String.valueOf(src));
+		return state != null && state == STATE_DONE;
+	}
+
+	/*
+	 * Whether an earlier run started writing the file with the given source
+	 * but didn't complete it, leaving a partial destination behind.
+	 */
+	public boolean isStarted(Object src) {
+		Integer state = mStates.get(String.valueOf(src));
+		return state != null && state == STATE_STARTED;
+	}
+
+	/*
+	 * Whether an earlier run wrote to the destination of the given source,
+	 * i.e. created its directory or started or completed its file. Only such
+	 * destinations may already exist when the transfer is resumed.
+	 */
+	public boolean isWritten(Object src) {
+		Integer state = mStates.get(String.valueOf(src));
+		return state != null && state != STATE_PENDING;
+	}
+
+	// Record the files of the manifest, keeping states from earlier runs
+	public void addFiles(TransferManifest<?, ?> manifest) {
+		mDbHelper.insertJournalFiles(mTransfer, manifest.getFiles(),
+				STATE_PENDING);
+	}
+
+	// Record a directory the transfer created
+	public void dirCreated(TransferManifest.Entry<?, ?> dir) {
+		mDbHelper.insertJournalFiles(mTransfer, Collections.singletonList(dir),
+				STATE_DONE);
+	}
+
+	public void fileStarted(Object src) {
+		mDbHelper.updateJournalFile(mTransfer, String.valueOf(src),
+				STATE_STARTED, 0);
+	}
+
+	public void fileDone(Object src, long bytes) {
+		mDbHelper.updateJournalFile(mTransfer, String.valueOf(src),
+				STATE_DONE, bytes);
+	}
+
+	// Forget the transfer once it completed
+	public void finish() {
+		mDbHelper.deleteJournal(mTransfer);
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * List of directories to create and files to copy for a recursive transfer,
+ * built by a single walk of the source tree. Directories are kept in the
+ * order they were added, so as long as a directory is added before its
+ * contents they can be created in order. The manifest also keeps the file
+ * count and total byte count used for progress reporting. Entries may be
+ * added from several threads at once.
+ */
+public class TransferManifest<S, D> {
+
+	// Source and destination of a directory or file
+	public static class Entry<S, D> {
+		public final S src;
+		public final D dst;
+		public final long length;
+
+		public Entry(S src, D dst, long length) {
+			this.src = src;
+			this.dst = dst;
+			this.length = length;
+		}
+	}
+
+	// Directories, parents before children
+	private final ArrayList<Entry<S, D>> dirs = new ArrayList<Entry<S, D>>();
+
+	// Files
+	private final ArrayList<Entry<S, D>> files = new ArrayList<Entry<S, D>>();
+
+	// Sum of the file lengths
+	private long totalBytes = 0;
+
+	public synchronized void addDir(S src, D dst) {
+		dirs.add(new Entry<S, D>(src, dst, 0));
+	}
+
+	public synchronized void addFile(S src, D dst, long length) {
+		files.add(new Entry<S, D>(src, dst, length));
+		totalBytes += length;
+	}
+
+	public synchronized List<Entry<S, D>> getDirs() {
+		return new ArrayList<Entry<S, D>>(dirs);
+	}
+
+	public synchronized List<Entry<S, D>> getFiles() {
+		return new ArrayList<Entry<S, D>>(files);
+	}
+
+	public synchronized int getNumDirs() {
+		return dirs.size();
+	}
+
+	public synchronized int getNumFiles() {
+		return files.size();
+	}
+
+	// Number of directories and files
+	public synchronized int size() {
+		return dirs.size() + files.size();
+	}
+
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+}
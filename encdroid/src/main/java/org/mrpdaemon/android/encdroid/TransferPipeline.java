@@ -0,0 +1,283 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mrpdaemon.sec.encfs.EncFSVolume;
+import org.mrpdaemon.sec.encfs.EncFSVolumeBuilder;
+
+import android.util.Log;
+
+/*
+ * Runs file transfer jobs against an EncFS volume on a fixed number of worker
+ * threads. EncFSVolume isn't thread safe, so each worker gets its own copy of
+ * the volume sharing the file provider and key data of the original. A failed
+ * job doesn't stop the others, failures are collected and returned once all
+ * jobs are done.
+ *
+ * Workers are plain threads rather than transfer lane tasks since cloud
+ * output streams themselves queue uploads on the lane, and a worker blocking
+ * on an upload queued behind it would deadlock the lane.
+ */
+public class TransferPipeline {
+
+	// Logger tag
+	private final static String TAG = "TransferPipeline";
+
+	// Job run by a pipeline worker
+	public interface Job {
+		// Name used when reporting progress and failures
+		public String getName();
+
+		// Run the job against the calling worker's copy of the volume
+		public void run(EncFSVolume volume) throws Exception;
+	}
+
+	// Listener notified from worker threads as jobs start and finish
+	public interface Listener {
+		public void jobStarted(Job job);
+
+		public void jobFinished(Job job, boolean success);
+	}
+
+	// Interval for logging workers that are slow to stop
+	private final static long WORKER_EXIT_LOG_SECONDS = 5;
+
+	// Volume the jobs operate on
+	private final EncFSVolume mVolume;
+
+	// Listener, may be null
+	private final Listener mListener;
+
+	// Worker threads
+	private final ExecutorService mWorkers;
+
+	// Each worker's copy of the volume
+	private final ThreadLocal<EncFSVolume> mWorkerVolume = new ThreadLocal<EncFSVolume>();
+
+	// Submitted jobs
+	private final ArrayList<Future<?>> mFutures = new ArrayList<Future<?>>();
+
+	// Failure messages for jobs that failed
+	private final List<String> mFailures = Collections
+			.synchronizedList(new ArrayList<String>());
+
+	// Signal of the transfer the jobs belong to, may be null
+	private volatile CancelSignal mCancelSignal = null;
+
+	// Cancels the pipeline when the transfer is cancelled
+	private final TransferExecutor.CancelListener mCancelListener = new TransferExecutor.CancelListener() {
+		@Override
+		public void onCancel() {
+			cancel();
+		}
+	};
+
+	public TransferPipeline(final String name, EncFSVolume volume,
+			int numWorkers, Listener listener) {
+		mVolume = volume;
+		mListener = listener;
+
+		final AtomicInteger threadCount = new AtomicInteger(0);
+		mWorkers = new ThreadPoolExecutor(numWorkers, numWorkers, 0,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						return new Thread(runnable, name + " #"
+								+ threadCount.incrementAndGet());
+					}
+				});
+	}
+
+	// Create a copy of the given volume for use from another thread
+	public static EncFSVolume cloneVolume(EncFSVolume volume) throws Exception {
+		return new EncFSVolumeBuilder()
+				.withFileProvider(volume.getFileProvider())
+				.withConfig(volume.getConfig())
+				.withDerivedKeyData(volume.getDerivedKeyData()).buildVolume();
+	}
+
+	// Return the calling worker's copy of the volume
+	private EncFSVolume getWorkerVolume() throws Exception {
+		EncFSVolume volume = mWorkerVolume.get();
+		if (volume == null) {
+			volume = cloneVolume(mVolume);
+			mWorkerVolume.set(volume);
+		}
+		return volume;
+	}
+
+	/*
+	 * Tie the pipeline to the given transfer's cancel signal, must be called
+	 * before submitting jobs. The signal is bound to the workers while they
+	 * run jobs, and cancelling it cancels the pipeline.
+	 */
+	public void setCancelSignal(CancelSignal signal) {
+		mCancelSignal = signal;
+		if (signal != null) {
+			signal.addListener(mCancelListener);
+		}
+	}
+
+	// Queue a job for the workers, may be called from a running job
+	public void submit(final Job job) {
+		Future<?> future;
+		try {
+			future = mWorkers.submit(new Runnable() {
+				@Override
+				public void run() {
+					if (mListener != null) {
+						mListener.jobStarted(job);
+					}
+
+					boolean success = false;
+					CancelSignal.bind(mCancelSignal);
+					try {
+						job.run(getWorkerVolume());
+						success = true;
+					} catch (Exception e) {
+						Logger.logException(TAG, e);
+						mFailures.add(job.getName()
+								+ ": "
+								+ (e.getMessage() != null ? e.getMessage() : e
+										.toString()));
+					} finally {
+						CancelSignal.bind(null);
+					}
+
+					if (mListener != null) {
+						mListener.jobFinished(job, success);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Pipeline was cancelled
+			Log.v(TAG, "Not running " + job.getName() + ", pipeline cancelled");
+			return;
+		}
+
+		synchronized (mFutures) {
+			mFutures.add(future);
+		}
+	}
+
+	/*
+	 * Wait for all submitted jobs to finish, including jobs submitted by other
+	 * jobs while waiting, and stop the workers. Returns the failure messages
+	 * of jobs that failed, empty if all succeeded. If the pipeline was
+	 * cancelled this still waits for the workers to exit, so no job is left
+	 * writing a partial file or journal entry once it returns.
+	 */
+	public List<String> await() throws InterruptedException {
+		int numJobs = 0;
+
+		try {
+			while (true) {
+				Future<?> future;
+				synchronized (mFutures) {
+					if (numJobs == mFutures.size()) {
+						// Nothing running that could submit more jobs
+						break;
+					}
+					future = mFutures.get(numJobs);
+				}
+				numJobs++;
+
+				try {
+					future.get();
+				} catch (CancellationException e) {
+					// Reported by whoever cancelled the pipeline
+				} catch (ExecutionException e) {
+					// Jobs catch their own exceptions, this is a bug
+					Logger.logException(TAG, e);
+					mFailures.add(e.getCause().toString());
+				}
+			}
+		} catch (InterruptedException e) {
+			cancel();
+			throw e;
+		} finally {
+			mWorkers.shutdown();
+			awaitWorkers();
+
+			if (mCancelSignal != null) {
+				mCancelSignal.removeListener(mCancelListener);
+			}
+		}
+
+		Log.d(TAG, "Pipeline finished " + numJobs + " jobs, "
+				+ mFailures.size() + " failed");
+
+		synchronized (mFailures) {
+			return new ArrayList<String>(mFailures);
+		}
+	}
+
+	/*
+	 * Wait for the worker threads to exit after shutdown. Cancelled jobs were
+	 * interrupted and check the cancel signal, so this only takes until they
+	 * notice. Interrupts don't cut the wait short, the interrupt status is
+	 * restored once the workers are gone.
+	 */
+	private void awaitWorkers() {
+		boolean interrupted = false;
+
+		while (true) {
+			try {
+				if (mWorkers.awaitTermination(WORKER_EXIT_LOG_SECONDS,
+						TimeUnit.SECONDS)) {
+					break;
+				}
+				Log.d(TAG, "Waiting for workers to stop");
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Cancel queued jobs and interrupt running ones
+	public void cancel() {
+		Log.d(TAG, "Cancelling pipeline");
+
+		synchronized (mFutures) {
+			for (Future<?> future : mFutures) {
+				future.cancel(true);
+			}
+		}
+		mWorkers.shutdownNow();
+	}
+}
@@ -0,0 +1,289 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mrpdaemon.android.encdroid;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+/*
+ * Foreground service that runs long transfers (import, export, paste,
+ * decrypt) independently of the activity that started them. While any
+ * transfer is queued or running the service stays in the foreground with a
+ * notification showing its progress, and holds wake and WiFi locks so the
+ * transfer keeps its speed after the user leaves the app or turns off the
+ * screen. Transfers run on their own thread pool, so transfers on different
+ * volumes run at the same time and don't hold up short metadata tasks. Each
+ * transfer works on its own copy of the EncFSVolume since the volume isn't
+ * thread-safe.
+ */
+public class TransferService extends Service {
+
+	// Logger tag
+	private final static String TAG = "TransferService";
+
+	// ID of the progress notification
+	private final static int NOTIFICATION_ID = 1;
+
+	// Intent action cancelling all transfers
+	private final static String ACTION_CANCEL = "org.mrpdaemon.android.encdroid.CANCEL_TRANSFERS";
+
+	// Interval between notification updates
+	private final static long UPDATE_INTERVAL_MS = 1000;
+
+	/*
+	 * Transfers queued or running, in the order they were started. The queue
+	 * only lives in memory: a transfer works on an unlocked volume, and once
+	 * the process is gone the volume is only unlocked again when the user
+	 * opens it, so the service can't restart transfers by itself. Recursive
+	 * transfers keep a TransferJournal instead, running the same transfer
+	 * again after opening the volume picks up where the previous run stopped.
+	 */
+	private final static ArrayList<EDAsyncTask<?, ?, ?>> transfers = new ArrayList<EDAsyncTask<?, ?, ?>>();
+
+	// Handler for periodic notification updates
+	private Handler mHandler;
+
+	// Used to update the notification once the service is in the foreground
+	private NotificationManager mNotificationManager;
+
+	// Whether the service was moved to the foreground
+	private boolean mForeground = false;
+
+	// Keeps the CPU running while transfers are in progress
+	private PowerManager.WakeLock mWakeLock;
+
+	// Keeps WiFi at full speed while transfers are in progress
+	private WifiManager.WifiLock mWifiLock;
+
+	// Periodic notification update, stops the service once idle
+	private final Runnable mUpdateRunnable = new Runnable() {
+		@Override
+		public void run() {
+			if (getNumTransfers() == 0) {
+				Log.d(TAG, "No transfers left, stopping");
+				TaskExecutors.logStats();
+				stopForeground(true);
+				mForeground = false;
+				stopSelf();
+				return;
+			}
+
+			if (mForeground) {
+				mNotificationManager.notify(NOTIFICATION_ID,
+						buildNotification());
+			} else {
+				startForeground(NOTIFICATION_ID, buildNotification());
+				mForeground = true;
+			}
+			mHandler.postDelayed(this, UPDATE_INTERVAL_MS);
+		}
+	};
+
+	/*
+	 * Run the given transfer task in the service. Must be called from the UI
+	 * thread like AsyncTask.execute().
+	 */
+	public static void startTransfer(Context context,
+			EDAsyncTask<Void, ?, ?> task) {
+		synchronized (transfers) {
+			transfers.add(task);
+		}
+
+		context.startService(new Intent(context, TransferService.class));
+
+		// Bind the task's cancel signal to the thread running it
+		final CancelSignal signal = task.getCancelSignal();
+		task.executeOnExecutor(new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				TaskExecutors.TRANSFER.execute(new Runnable() {
+					@Override
+					public void run() {
+						CancelSignal.bind(signal);
+						try {
+							command.run();
+						} finally {
+							CancelSignal.bind(null);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	// Called by transfer tasks once they're complete or cancelled
+	public static void transferFinished(EDAsyncTask<?, ?, ?> task) {
+		synchronized (transfers) {
+			transfers.remove(task);
+		}
+	}
+
+	// Cancel all queued and running transfers
+	private static void cancelTransfers() {
+		ArrayList<EDAsyncTask<?, ?, ?>> current;
+		synchronized (transfers) {
+			current = new ArrayList<EDAsyncTask<?, ?, ?>>(transfers);
+		}
+
+		for (EDAsyncTask<?, ?, ?> task : current) {
+			task.cancelTask();
+		}
+	}
+
+	private static int getNumTransfers() {
+		synchronized (transfers) {
+			return transfers.size();
+		}
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+
+		mHandler = new Handler();
+		mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+
+		PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+		mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+				TAG);
+		mWakeLock.acquire();
+
+		WifiManager wifiManager = (WifiManager) getApplicationContext()
+				.getSystemService(Context.WIFI_SERVICE);
+		if (wifiManager != null) {
+			mWifiLock = wifiManager.createWifiLock(
+					WifiManager.WIFI_MODE_FULL_HIGH_PERF, TAG);
+			mWifiLock.acquire();
+		}
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		if (intent != null && ACTION_CANCEL.equals(intent.getAction())) {
+			Log.d(TAG, "Cancelling all transfers");
+			cancelTransfers();
+		}
+
+		mHandler.removeCallbacks(mUpdateRunnable);
+		mUpdateRunnable.run();
+
+		// Queued transfers die with the process, so there's nothing to restart
+		return START_NOT_STICKY;
+	}
+
+	@Override
+	public void onDestroy() {
+		mHandler.removeCallbacks(mUpdateRunnable);
+
+		if (mWifiLock != null && mWifiLock.isHeld()) {
+			mWifiLock.release();
+		}
+		if (mWakeLock.isHeld()) {
+			mWakeLock.release();
+		}
+
+		super.onDestroy();
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+
+	// Fraction of the given task that's complete, in percent
+	private static int getPercentComplete(EDAsyncTask<?, ?, ?> task) {
+		TaskProgress progress = task.getProgress();
+		long current, total;
+
+		if (task.isMultiFileProgress()) {
+			current = progress.getCurrentFileIdx();
+			total = progress.getTotalFiles();
+		} else {
+			current = progress.getCurrentBytes();
+			total = progress.getTotalBytes();
+		}
+
+		if (total <= 0) {
+			return 0;
+		}
+		return (int) Math.min(100, current * 100 / total);
+	}
+
+	// Build the notification showing progress of all transfers
+	private Notification buildNotification() {
+		ArrayList<EDAsyncTask<?, ?, ?>> current;
+		synchronized (transfers) {
+			current = new ArrayList<EDAsyncTask<?, ?, ?>>(transfers);
+		}
+
+		String title;
+		String text;
+		if (current.size() == 1) {
+			EDAsyncTask<?, ?, ?> task = current.get(0);
+			title = task.getTitle() != null ? task.getTitle()
+					: getString(R.string.app_name);
+			text = task.getProgress().getCurrentFileName();
+		} else {
+			title = String.format(
+					getString(R.string.transfer_notification_title),
+					current.size());
+			text = current.get(0).getTitle();
+		}
+
+		int percent = 0;
+		for (EDAsyncTask<?, ?, ?> task : current) {
+			percent += getPercentComplete(task);
+		}
+		percent /= current.size();
+
+		// Bring the app back as the user left it
+		Intent launchIntent = getPackageManager().getLaunchIntentForPackage(
+				getPackageName());
+		PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+				launchIntent, 0);
+
+		Intent cancelIntent = new Intent(this, TransferService.class);
+		cancelIntent.setAction(ACTION_CANCEL);
+		PendingIntent cancelPendingIntent = PendingIntent.getService(this, 0,
+				cancelIntent, 0);
+
+		return new NotificationCompat.Builder(this)
+				.setSmallIcon(R.drawable.ic_launcher).setContentTitle(title)
+				.setContentText(text).setProgress(100, percent, false)
+				.setContentIntent(contentIntent)
+				.addAction(android.R.drawable.ic_menu_close_clear_cancel,
+						getString(R.string.btn_cancel_str), cancelPendingIntent)
+				.setOngoing(true)
+				.setOnlyAlertOnce(true).build();
+	}
+}
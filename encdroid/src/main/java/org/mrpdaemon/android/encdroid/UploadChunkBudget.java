@@ -0,0 +1,71 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import android.util.Log;
+
+/*
+ * App-wide budget for upload chunk buffers. Cloud uploads keep a whole chunk
+ * in memory so it can be sent again after an error, and with several
+ * transfers each running several uploads the configured chunk sizes could
+ * add up to more than the heap. Upload streams reserve their chunk buffer
+ * here and get a smaller one once the budget is used up.
+ */
+class UploadChunkBudget {
+
+	// Logger tag
+	private final static String TAG = "UploadChunkBudget";
+
+	// Every upload gets at least this much so that none of them stalls
+	private final static int MIN_CHUNK_SIZE = 1024 * 1024;
+
+	// Part of the heap that chunk buffers may use, in 1/n
+	private final static int HEAP_SHARE = 4;
+
+	// Total bytes available for chunk buffers
+	private final static long budget = Runtime.getRuntime().maxMemory()
+			/ HEAP_SHARE;
+
+	// Bytes currently reserved
+	private static long reserved = 0;
+
+	/*
+	 * Reserve a chunk buffer of up to size bytes, returns the size granted.
+	 * This is less than requested if the budget is used up, but never less
+	 * than MIN_CHUNK_SIZE (or size if that's smaller).
+	 */
+	static synchronized int reserve(int size) {
+		long available = Math.max(0, budget - reserved);
+		int granted = (int) Math.max(Math.min(size, MIN_CHUNK_SIZE),
+				Math.min(size, available));
+
+		if (granted < size) {
+			Log.v(TAG, "Chunk of " + size + " bytes reduced to " + granted
+					+ ", " + reserved + " of " + budget + " bytes in use");
+		}
+
+		reserved += granted;
+		return granted;
+	}
+
+	// Return a buffer reserved with reserve()
+	static synchronized void release(int size) {
+		reserved -= size;
+	}
+}
@@ -21,7 +21,6 @@ package org.mrpdaemon.android.encdroid;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -31,9 +30,13 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Stack;
+import java.util.concurrent.Executor;
 
+import org.mrpdaemon.sec.encfs.EncFSConfig;
+import org.mrpdaemon.sec.encfs.EncFSCrypto;
 import org.mrpdaemon.sec.encfs.EncFSFile;
 import org.mrpdaemon.sec.encfs.EncFSFileInputStream;
+import org.mrpdaemon.sec.encfs.EncFSFileProvider;
 import org.mrpdaemon.sec.encfs.EncFSFileOutputStream;
 import org.mrpdaemon.sec.encfs.EncFSVolume;
 
@@ -135,6 +138,12 @@ public class VolumeBrowserActivity extends ListActivity implements
 	// Task fragment tag
 	private final static String TASK_FRAGMENT_TAG = "TaskFragment";
 
+	// Maximum number of files transferred at once for local volumes
+	private final static int MAX_LOCAL_TRANSFER_WORKERS = 4;
+
+	// Maximum number of failed files listed in the error dialog
+	private final static int MAX_REPORTED_FAILURES = 5;
+
 	// Adapter for the list
 	private FileChooserAdapter mAdapter = null;
 
@@ -494,7 +503,8 @@ public class VolumeBrowserActivity extends ListActivity implements
 			mImportFileName = savedInstanceState
 					.getString(SAVED_IMPORT_FILE_NAME_KEY);
 
-			new ActivityRestoreTask(savedInstanceState).execute();
+			new ActivityRestoreTask(savedInstanceState)
+					.executeOnExecutor(TaskExecutors.forVolume(mVolume));
 		}
 
 		getActionBar().setDisplayHomeAsUpEnabled(true);
@@ -661,6 +671,48 @@ public class VolumeBrowserActivity extends ListActivity implements
 		}
 	}
 
+	// Return the volume's file provider if it supports request batching
+	private static GoogleDriveFileProvider getBatchingProvider(
+			EncFSVolume volume) {
+		EncFSFileProvider provider = volume.getFileProvider();
+		if (provider instanceof GoogleDriveFileProvider) {
+			return (GoogleDriveFileProvider) provider;
+		}
+		return null;
+	}
+
+	/*
+	 * Copy a file or directory by copying its encrypted data on the provider,
+	 * so cloud volumes don't download and upload it again. This only works if
+	 * the file contents don't depend on the path (no external IV chaining) and,
+	 * for directories, if the names of the children don't depend on it either
+	 * (no chained name IV). Returns false if the copy has to go through
+	 * encfs-java instead.
+	 */
+	private static boolean copyCiphertext(EncFSVolume volume,
+			EncFSFile srcFile, String dstPath) throws Exception {
+		EncFSConfig config = volume.getConfig();
+		EncFSFileProvider provider = volume.getFileProvider();
+
+		if (config.isSupportedExternalIVChaining()) {
+			return false;
+		}
+
+		String encDstPath = EncFSCrypto.encodePath(volume, dstPath,
+				EncFSVolume.ROOT_PATH);
+
+		if (srcFile.isDirectory()) {
+			if (config.isChainedNameIV()
+					|| !(provider instanceof DirectoryCopyProvider)) {
+				return false;
+			}
+			return ((DirectoryCopyProvider) provider).copyDirectory(
+					srcFile.getEncryptedPath(), encDstPath);
+		}
+
+		return provider.copy(srcFile.getEncryptedPath(), encDstPath);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -1238,7 +1290,7 @@ public class VolumeBrowserActivity extends ListActivity implements
 	// Show a progress spinner and launch the fill task
 	private void launchFillTask() {
 		mFillTask = new FillTask();
-		mFillTask.execute();
+		mFillTask.executeOnExecutor(TaskExecutors.forVolume(mVolume));
 	}
 
 	// Returns the best name for a multi select list
@@ -1277,25 +1329,9 @@ public class VolumeBrowserActivity extends ListActivity implements
 	private boolean copyStreams(InputStream is, OutputStream os,
 			EDAsyncTask<?, ?, ?> task) {
 		try {
-			byte[] buf = new byte[8192];
-			int bytesRead = 0;
-			try {
-				try {
-					bytesRead = is.read(buf);
-					while (bytesRead >= 0) {
-						os.write(buf, 0, bytesRead);
-						bytesRead = is.read(buf);
-						if (task != null) {
-							task.getProgress().incCurrentBytes(8192);
-							task.updateProgress();
-						}
-					}
-				} finally {
-					is.close();
-				}
-			} finally {
-				os.close();
-			}
+			transferStream(is, os,
+					StreamCopier.getBufferSize(mEncfsVolume.getFileProvider()),
+					task);
 		} catch (IOException e) {
 			Logger.logException(TAG, e);
 			task.getFragment().returnError(e.getMessage());
@@ -1305,25 +1341,52 @@ public class VolumeBrowserActivity extends ListActivity implements
 		return true;
 	}
 
-	private boolean exportFile(EncFSFile srcFile, File dstFile,
-			EDAsyncTask<?, ?, ?> task) {
+	/*
+	 * Copy the input stream to the output stream and close both. If a task is
+	 * given the bytes copied are added to its progress, which may be shared
+	 * between several copies running at once.
+	 */
+	private static void transferStream(InputStream is, OutputStream os,
+			int bufferSize, final EDAsyncTask<?, ?, ?> task)
+			throws IOException {
+		StreamCopier.ProgressCallback callback = null;
+
+		if (task != null) {
+			callback = new StreamCopier.ProgressCallback() {
+				@Override
+				public void bytesCopied(long bytes) {
+					TaskProgress progress = task.getProgress();
+					progress.incCurrentBytes(bytes);
+					task.updateProgress();
+				}
+			};
+		}
+
+		StreamCopier.copyAndClose(is, os, bufferSize, callback);
+	}
+
+	// Export the given file, reading it through the transfer's volume copy
+	private boolean exportFile(EncFSVolume volume, EncFSFile srcFile,
+			File dstFile, EDAsyncTask<?, ?, ?> task) {
 		EncFSFileInputStream efis = null;
 
-		task.getProgress().setTotalBytes((int) srcFile.getLength());
+		task.getProgress().setTotalBytes(srcFile.getLength());
 		task.updateProgress();
 
 		try {
-			efis = new EncFSFileInputStream(srcFile);
+			// EncFSFile objects are tied to a volume, look up our own
+			efis = new EncFSFileInputStream(volume.getFile(srcFile.getPath()));
 		} catch (Exception e) {
 			Logger.logException(TAG, e);
 			task.getFragment().returnError(e.getMessage());
 			return false;
 		}
 
-		FileOutputStream fos = null;
+		OutputStream fos = null;
 		try {
-			fos = new FileOutputStream(dstFile);
-		} catch (FileNotFoundException e) {
+			fos = new PreallocatedFileOutputStream(dstFile,
+					srcFile.getLength());
+		} catch (IOException e) {
 			Logger.logException(TAG, e);
 			task.getFragment().returnError(e.getMessage());
 			try {
@@ -1334,55 +1397,382 @@ public class VolumeBrowserActivity extends ListActivity implements
 			return false;
 		}
 
-		return copyStreams(efis, fos, task);
+		if (!copyStreams(efis, fos, task)) {
+			dstFile.delete();
+			return false;
+		}
+
+		return true;
 	}
 
-	// Export all files/dirs under the EncFS dir to the given dir
-	private boolean recursiveExport(EncFSFile srcDir, File dstDir,
+	/*
+	 * Return a copy of the volume for a transfer task to work on. Transfers
+	 * run beside each other and beside the tasks on the volume's serial queue,
+	 * and an EncFSVolume isn't thread-safe. Returns null after reporting an
+	 * error.
+	 */
+	private static EncFSVolume cloneTransferVolume(EncFSVolume volume,
 			EDAsyncTask<?, ?, ?> task) {
 		try {
-			int currentFileIdx = 0;
-			int totalFiles = EncFSVolume.countFiles(srcDir);
+			return TransferPipeline.cloneVolume(volume);
+		} catch (Exception e) {
+			Logger.logException(TAG, e);
+			task.getFragment().returnError(e.getMessage());
+			return null;
+		}
+	}
 
-			for (EncFSFile file : srcDir.listFiles()) {
-				task.getProgress().setTotalFiles(totalFiles);
-				task.getProgress().setCurrentFileIdx(currentFileIdx++);
+	// Delete a partially written file from the volume, failures are ignored
+	private static void removePartialFile(EncFSVolume volume, String path) {
+		try {
+			if (volume.pathExists(path)) {
+				volume.deletePath(path, false);
+			}
+		} catch (Exception e) {
+			Logger.logException(TAG, e);
+		}
+	}
 
-				File dstFile = new File(dstDir, file.getName());
+	/*
+	 * Job listing an EncFS directory into the export manifest. Subdirectories
+	 * are queued as further jobs right away, so listings of sibling
+	 * directories are fetched in parallel instead of one round trip at a time.
+	 */
+	static class ExportScanJob implements TransferPipeline.Job {
 
-				task.getProgress().setCurrentFileName(file.getPath());
-				task.updateProgress();
+		private final TransferPipeline mPipeline;
+		private final TransferManifest<String, File> mManifest;
+		private final TransferManifest.Entry<String, File> mDir;
 
-				if (file.isDirectory()) { // Directory
-					if (dstFile.mkdir()) {
-						// Export all files/folders under this dir
-						if (recursiveExport(file, dstFile, task) == false) {
-							return false;
-						}
-					} else {
-						task.getFragment().returnError(
-								String.format(
-										getString(R.string.error_mkdir_fail),
-										dstFile.getAbsolutePath()));
-						return false;
-					}
-				} else { // Export an individual file
-					if (exportFile(file, dstFile, task) == false) {
-						return false;
-					}
+		ExportScanJob(TransferPipeline pipeline,
+				TransferManifest<String, File> manifest,
+				TransferManifest.Entry<String, File> dir) {
+			mPipeline = pipeline;
+			mManifest = manifest;
+			mDir = dir;
+		}
+
+		@Override
+		public String getName() {
+			return mDir.src;
+		}
+
+		@Override
+		public void run(EncFSVolume volume) throws Exception {
+			for (EncFSFile file : volume.listFilesForPath(mDir.src)) {
+				File dst = new File(mDir.dst, file.getName());
+
+				if (file.isDirectory()) {
+					// Parent was added before this job ran, keeping the order
+					TransferManifest.Entry<String, File> dir = new TransferManifest.Entry<String, File>(
+							file.getPath(), dst, 0);
+					mManifest.addDir(dir.src, dir.dst);
+					mPipeline.submit(new ExportScanJob(mPipeline, mManifest,
+							dir));
+				} else {
+					mManifest.addFile(file.getPath(), dst, file.getLength());
 				}
 			}
-		} catch (Exception e) {
+		}
+	}
+
+	// Job exporting a single file through the transfer pipeline
+	private static class ExportFileJob implements TransferPipeline.Job {
+
+		private final TransferManifest.Entry<String, File> mEntry;
+		private final TransferJournal mJournal;
+		private final EDAsyncTask<?, ?, ?> mTask;
+
+		ExportFileJob(TransferManifest.Entry<String, File> entry,
+				TransferJournal journal, EDAsyncTask<?, ?, ?> task) {
+			mEntry = entry;
+			mJournal = journal;
+			mTask = task;
+		}
+
+		@Override
+		public String getName() {
+			return mEntry.src;
+		}
+
+		@Override
+		public void run(EncFSVolume volume) throws Exception {
+			mJournal.fileStarted(mEntry.src);
+
+			// EncFSFile objects are tied to a volume, look up our own
+			EncFSFile srcFile = volume.getFile(mEntry.src);
+			InputStream is = new EncFSFileInputStream(srcFile);
+			OutputStream os;
+			try {
+				os = new PreallocatedFileOutputStream(mEntry.dst,
+						mEntry.length);
+			} catch (IOException e) {
+				is.close();
+				throw e;
+			}
+			try {
+				transferStream(is, os,
+						StreamCopier.getBufferSize(volume.getFileProvider()),
+						mTask);
+			} catch (IOException e) {
+				mEntry.dst.delete();
+				throw e;
+			}
+
+			mJournal.fileDone(mEntry.src, mEntry.length);
+		}
+	}
+
+	/*
+	 * Scan the given EncFS directories into the manifest, listing each
+	 * directory exactly once. Listings are fetched in parallel, the calling
+	 * thread waits until the whole tree has been listed.
+	 */
+	private boolean planExport(List<TransferManifest.Entry<String, File>> srcDirs,
+			EncFSVolume volume, TransferManifest<String, File> manifest,
+			EDAsyncTask<?, ?, ?> task) {
+		TransferPipeline pipeline = new TransferPipeline("Scan", volume,
+				getMaxTransferWorkers(), null);
+		pipeline.setCancelSignal(task.getCancelSignal());
+
+		for (TransferManifest.Entry<String, File> dir : srcDirs) {
+			manifest.addDir(dir.src, dir.dst);
+			pipeline.submit(new ExportScanJob(pipeline, manifest, dir));
+		}
+
+		List<String> failures;
+		try {
+			failures = pipeline.await();
+		} catch (InterruptedException e) {
 			Logger.logException(TAG, e);
 			task.getFragment().returnError(e.getMessage());
 			return false;
 		}
+
+		if (task.getCancelSignal().isCancelled()) {
+			return false;
+		}
+
+		if (!failures.isEmpty()) {
+			task.getFragment().returnError(
+					getFailureString(task.getFragment(), failures,
+							srcDirs.size()));
+			return false;
+		}
+
+		return true;
+	}
+
+	/*
+	 * Return the first destination of the given export sources that already
+	 * exists in dstPath, or null if there's none. Destinations an earlier run
+	 * of the export wrote to are expected to exist and don't count.
+	 */
+	static File findExistingDestination(List<EncFSFile> srcFiles,
+			File dstPath, TransferJournal journal) {
+		for (EncFSFile srcFile : srcFiles) {
+			File dstFile = new File(dstPath, srcFile.getName());
+			if (dstFile.exists() && !journal.isWritten(srcFile.getPath())) {
+				return dstFile;
+			}
+		}
+
+		return null;
+	}
+
+	/*
+	 * Export the entries of the given manifest. Local directories are created
+	 * first, then files are decrypted and copied in parallel, failures are
+	 * reported once the rest are done. Files the journal records as exported
+	 * by an earlier run are skipped.
+	 */
+	private boolean runExport(TransferManifest<String, File> manifest,
+			EncFSVolume volume, TransferJournal journal,
+			EDAsyncTask<?, ?, ?> task) {
+		startManifestProgress(manifest, task);
+
+		for (TransferManifest.Entry<String, File> dir : manifest.getDirs()) {
+			if (task.getCancelSignal().isCancelled()) {
+				return false;
+			}
+
+			task.getProgress().setCurrentFileName(dir.src);
+			task.updateProgress();
+
+			if (dir.dst.mkdir()) {
+				journal.dirCreated(dir);
+			} else if (!(journal.isWritten(dir.src) && dir.dst.isDirectory())) {
+				task.getFragment().returnError(
+						String.format(task.getFragment().getStringSafe(
+								R.string.error_mkdir_fail), dir.dst
+								.getAbsolutePath()));
+				return false;
+			}
+
+			task.getProgress().incCurrentFileIdx();
+		}
+
+		journal.addFiles(manifest);
+
+		ArrayList<TransferPipeline.Job> jobs = new ArrayList<TransferPipeline.Job>();
+		for (TransferManifest.Entry<String, File> file : manifest.getFiles()) {
+			// Skip files exported earlier unless they were removed since
+			if (journal.isDone(file.src) && file.dst.length() == file.length) {
+				skipJournaledFile(file, task);
+			} else {
+				jobs.add(new ExportFileJob(file, journal, task));
+			}
+		}
+
+		if (!runTransferJobs("Export", volume, jobs, task)) {
+			return false;
+		}
+
+		journal.finish();
 		return true;
 	}
 
+	/*
+	 * Job listing an EncFS directory into a copy manifest, queueing its
+	 * subdirectories as further jobs like ExportScanJob.
+	 */
+	private static class CopyScanJob implements TransferPipeline.Job {
+
+		private final TransferPipeline mPipeline;
+		private final TransferManifest<String, String> mManifest;
+		private final String mSrcPath;
+		private final String mDstPath;
+
+		CopyScanJob(TransferPipeline pipeline,
+				TransferManifest<String, String> manifest, String srcPath,
+				String dstPath) {
+			mPipeline = pipeline;
+			mManifest = manifest;
+			mSrcPath = srcPath;
+			mDstPath = dstPath;
+		}
+
+		@Override
+		public String getName() {
+			return mSrcPath;
+		}
+
+		@Override
+		public void run(EncFSVolume volume) throws Exception {
+			for (EncFSFile file : volume.listFilesForPath(mSrcPath)) {
+				String dstPath = EncFSVolume.combinePath(mDstPath,
+						file.getName());
+
+				if (file.isDirectory()) {
+					mManifest.addDir(file.getPath(), dstPath);
+					mPipeline.submit(new CopyScanJob(mPipeline, mManifest,
+							file.getPath(), dstPath));
+				} else {
+					mManifest.addFile(file.getPath(), dstPath, file.getLength());
+				}
+			}
+		}
+	}
+
+	// Job copying a single file within the volume
+	private static class CopyFileJob implements TransferPipeline.Job {
+
+		private final TransferManifest.Entry<String, String> mEntry;
+
+		CopyFileJob(TransferManifest.Entry<String, String> entry) {
+			mEntry = entry;
+		}
+
+		@Override
+		public String getName() {
+			return mEntry.src;
+		}
+
+		@Override
+		public void run(EncFSVolume volume) throws Exception {
+			EncFSFile srcFile = volume.getFile(mEntry.src);
+			if (!copyCiphertext(volume, srcFile, mEntry.dst)
+					&& !volume.copyPath(mEntry.src, mEntry.dst, null)) {
+				throw new IOException("Copy to " + mEntry.dst + " failed");
+			}
+		}
+	}
+
+	/*
+	 * Copy a directory within the volume with several files in flight at
+	 * once. The tree is listed first, then the destination directories are
+	 * created in order so every file's parent exists, then the files are
+	 * copied in parallel, on the server where the volume allows it. Progress
+	 * counts directories and files like EncFSVolume.copyPath() does. Returns
+	 * false after reporting an error if anything failed.
+	 */
+	private boolean copyDirectory(EncFSFile srcDir, String dstPath,
+			EncFSVolume volume, EDAsyncTask<?, ?, ?> task) {
+		TransferManifest<String, String> manifest = new TransferManifest<String, String>();
+		manifest.addDir(srcDir.getPath(), dstPath);
+
+		TransferPipeline scanPipeline = new TransferPipeline("Scan", volume,
+				getMaxTransferWorkers(), null);
+		scanPipeline.setCancelSignal(task.getCancelSignal());
+		scanPipeline.submit(new CopyScanJob(scanPipeline, manifest, srcDir
+				.getPath(), dstPath));
+
+		List<String> failures;
+		try {
+			failures = scanPipeline.await();
+		} catch (InterruptedException e) {
+			Logger.logException(TAG, e);
+			task.getFragment().returnError(e.getMessage());
+			return false;
+		}
+
+		if (task.getCancelSignal().isCancelled()) {
+			return false;
+		}
+
+		if (!failures.isEmpty()) {
+			task.getFragment().returnError(
+					getFailureString(task.getFragment(), failures, 1));
+			return false;
+		}
+
+		startManifestProgress(manifest, task);
+
+		for (TransferManifest.Entry<String, String> dir : manifest.getDirs()) {
+			if (task.getCancelSignal().isCancelled()) {
+				return false;
+			}
+
+			task.getProgress().setCurrentFileName(dir.src);
+			task.updateProgress();
+
+			try {
+				if (!volume.makeDir(dir.dst)) {
+					task.getFragment().returnError(
+							String.format(task.getFragment().getStringSafe(
+									R.string.error_mkdir_fail), dir.dst));
+					return false;
+				}
+			} catch (Exception e) {
+				Logger.logException(TAG, e);
+				task.getFragment().returnError(e.getMessage());
+				return false;
+			}
+
+			task.getProgress().incCurrentFileIdx();
+		}
+
+		ArrayList<TransferPipeline.Job> jobs = new ArrayList<TransferPipeline.Job>();
+		for (TransferManifest.Entry<String, String> file : manifest.getFiles()) {
+			jobs.add(new CopyFileJob(file));
+		}
+
+		return runTransferJobs("Copy", volume, jobs, task);
+	}
+
 	private boolean importFile(File srcFile, EncFSFile dstFile,
 			EDAsyncTask<?, ?, ?> task) {
-		task.getProgress().setTotalBytes((int) srcFile.length());
+		task.getProgress().setTotalBytes(srcFile.length());
 		task.updateProgress();
 
 		FileInputStream fis = null;
@@ -1411,61 +1801,238 @@ public class VolumeBrowserActivity extends ListActivity implements
 		return copyStreams(fis, efos, task);
 	}
 
-	// Count files and directories under the given file
-	private int countFiles(File file) {
-		if (file.isDirectory()) {
-			int dirCount = 1;
-			for (File subFile : file.listFiles()) {
-				dirCount += countFiles(subFile);
+	// Walk the given local file/directory adding its entries to the manifest
+	static void planImport(File src, String dstPath,
+			TransferManifest<File, String> manifest) {
+		if (src.isDirectory()) {
+			manifest.addDir(src, dstPath);
+
+			File[] children = src.listFiles();
+			if (children != null) {
+				for (File child : children) {
+					planImport(child,
+							EncFSVolume.combinePath(dstPath, child.getName()),
+							manifest);
+				}
 			}
-			return dirCount;
 		} else {
-			return 1;
+			manifest.addFile(src, dstPath, src.length());
 		}
 	}
 
-	// Import all files/dirs under the given file to the given EncFS dir
-	private boolean recursiveImport(File srcDir, EncFSFile dstDir,
-			EDAsyncTask<?, ?, ?> task) {
+	// Number of files to transfer at once to/from the current volume
+	private int getMaxTransferWorkers() {
+		Account account = mVolume.getFileSystem().getAccount();
+		if (account != null) {
+			return account.getMaxConcurrentTransfers();
+		}
+
+		// Local volumes are limited by encryption, so use the CPU's
+		return Math.max(1, Math.min(MAX_LOCAL_TRANSFER_WORKERS, Runtime
+				.getRuntime().availableProcessors()));
+	}
+
+	// Build the error message listing the given transfer failures
+	private String getFailureString(TaskFragment fragment,
+			List<String> failures, int total) {
+		StringBuilder failureList = new StringBuilder();
+		for (int i = 0; i < failures.size() && i < MAX_REPORTED_FAILURES; i++) {
+			failureList.append('\n').append(failures.get(i));
+		}
+		if (failures.size() > MAX_REPORTED_FAILURES) {
+			failureList.append("\n...");
+		}
+
+		return String.format(
+				fragment.getStringSafe(R.string.error_transfer_failures),
+				failures.size(), total, failureList.toString());
+	}
+
+	// Job importing a single file through the transfer pipeline
+	static class ImportFileJob implements TransferPipeline.Job {
+
+		private final TransferManifest.Entry<File, String> mEntry;
+		private final TransferJournal mJournal;
+		private final EDAsyncTask<?, ?, ?> mTask;
+
+		ImportFileJob(TransferManifest.Entry<File, String> entry,
+				TransferJournal journal, EDAsyncTask<?, ?, ?> task) {
+			mEntry = entry;
+			mJournal = journal;
+			mTask = task;
+		}
+
+		@Override
+		public String getName() {
+			return mEntry.src.getPath();
+		}
+
+		@Override
+		public void run(EncFSVolume volume) throws Exception {
+			mJournal.fileStarted(mEntry.src);
+
+			/*
+			 * Partially imported by an interrupted run, start over. Any other
+			 * existing destination is left alone and fails like it would on
+			 * a fresh run.
+			 */
+			if (mJournal.isStarted(mEntry.src)
+					&& volume.pathExists(mEntry.dst)) {
+				volume.deletePath(mEntry.dst, false);
+			}
+
+			EncFSFile dstFile = volume.createFile(mEntry.dst);
+			try {
+				InputStream is = new FileInputStream(mEntry.src);
+				OutputStream os;
+				try {
+					os = new EncFSFileOutputStream(dstFile, mEntry.length);
+				} catch (Exception e) {
+					is.close();
+					throw e;
+				}
+				transferStream(is, os,
+						StreamCopier.getBufferSize(volume.getFileProvider()),
+						mTask);
+			} catch (Exception e) {
+				removePartialFile(volume, mEntry.dst);
+				throw e;
+			}
 
-		int currentFileIdx = 0;
-		int totalFiles = countFiles(srcDir);
+			mJournal.fileDone(mEntry.src, mEntry.length);
+		}
+	}
 
-		for (File file : srcDir.listFiles()) {
-			task.getProgress().setTotalFiles(totalFiles);
-			task.getProgress().setCurrentFileIdx(currentFileIdx++);
+	/*
+	 * Import the entries of the given manifest. Directories are created first
+	 * in order so every file's parent exists, then the files are imported in
+	 * parallel. A file that fails to import doesn't stop the others, all
+	 * failures are reported once the rest are done. Files the journal records
+	 * as imported by an earlier run are skipped.
+	 */
+	private boolean runImport(TransferManifest<File, String> manifest,
+			EncFSVolume volume, TransferJournal journal,
+			EDAsyncTask<?, ?, ?> task) {
+		startManifestProgress(manifest, task);
 
-			String dstPath = EncFSVolume.combinePath(dstDir, file.getName());
+		for (TransferManifest.Entry<File, String> dir : manifest.getDirs()) {
+			if (task.getCancelSignal().isCancelled()) {
+				return false;
+			}
 
-			task.getProgress().setCurrentFileName(file.getPath());
+			task.getProgress().setCurrentFileName(dir.src.getPath());
 			task.updateProgress();
 
 			try {
-				if (file.isDirectory()) { // Directory
-					if (mEncfsVolume.makeDir(dstPath)) {
-						// Import all files/folders under this dir
-						if (recursiveImport(file,
-								mEncfsVolume.getFile(dstPath), task) == false) {
-							return false;
-						}
-					} else {
-						task.getFragment().returnError(
-								String.format(
-										getString(R.string.error_mkdir_fail),
-										dstPath));
-						return false;
-					}
-				} else { // Import an individual file
-					if (importFile(file, mEncfsVolume.createFile(dstPath), task) == false) {
-						return false;
-					}
+				if (journal.isWritten(dir.src) && volume.pathExists(dir.dst)) {
+					// Created by an interrupted run
+				} else if (volume.makeDir(dir.dst)) {
+					journal.dirCreated(dir);
+				} else {
+					task.getFragment().returnError(
+							String.format(task.getFragment().getStringSafe(
+									R.string.error_mkdir_fail), dir.dst));
+					return false;
 				}
 			} catch (Exception e) {
 				Logger.logException(TAG, e);
 				task.getFragment().returnError(e.getMessage());
 				return false;
 			}
+
+			task.getProgress().incCurrentFileIdx();
+		}
+
+		journal.addFiles(manifest);
+
+		ArrayList<TransferPipeline.Job> jobs = new ArrayList<TransferPipeline.Job>();
+		for (TransferManifest.Entry<File, String> file : manifest.getFiles()) {
+			if (journal.isDone(file.src)) {
+				skipJournaledFile(file, task);
+			} else {
+				jobs.add(new ImportFileJob(file, journal, task));
+			}
+		}
+
+		if (!runTransferJobs("Import", volume, jobs, task)) {
+			return false;
 		}
+
+		journal.finish();
+		return true;
+	}
+
+	// Count a file completed by an earlier run of the transfer as done
+	private static void skipJournaledFile(TransferManifest.Entry<?, ?> file,
+			EDAsyncTask<?, ?, ?> task) {
+		TaskProgress progress = task.getProgress();
+		progress.incCurrentFileIdx();
+		progress.incCurrentBytes(file.length);
+	}
+
+	// Reset the task's progress to cover the whole manifest
+	private static void startManifestProgress(TransferManifest<?, ?> manifest,
+			EDAsyncTask<?, ?, ?> task) {
+		TaskProgress progress = task.getProgress();
+		progress.setTotalFiles(manifest.size());
+		progress.setCurrentFileIdx(0);
+		progress.setTotalBytes(manifest.getTotalBytes());
+		progress.setCurrentBytes(0);
+		task.updateProgress();
+	}
+
+	/*
+	 * Run the given file transfer jobs in parallel. Jobs add the bytes they
+	 * copy to the task's progress, this tracks the current file name and the
+	 * number of finished files. Returns false after reporting an error if any
+	 * job failed.
+	 */
+	private boolean runTransferJobs(String name, EncFSVolume volume,
+			List<TransferPipeline.Job> jobs, final EDAsyncTask<?, ?, ?> task) {
+		final TaskProgress progress = task.getProgress();
+
+		TransferPipeline pipeline = new TransferPipeline(name, volume,
+				getMaxTransferWorkers(), new TransferPipeline.Listener() {
+					@Override
+					public void jobStarted(TransferPipeline.Job job) {
+						progress.setCurrentFileName(job.getName());
+						task.updateProgress();
+					}
+
+					@Override
+					public void jobFinished(TransferPipeline.Job job,
+							boolean success) {
+						progress.incCurrentFileIdx();
+						task.updateProgress();
+					}
+				});
+
+		pipeline.setCancelSignal(task.getCancelSignal());
+
+		for (TransferPipeline.Job job : jobs) {
+			pipeline.submit(job);
+		}
+
+		List<String> failures;
+		try {
+			failures = pipeline.await();
+		} catch (InterruptedException e) {
+			Logger.logException(TAG, e);
+			task.getFragment().returnError(e.getMessage());
+			return false;
+		}
+
+		// Reported once the task finishes
+		if (task.getCancelSignal().isCancelled()) {
+			return false;
+		}
+
+		if (!failures.isEmpty()) {
+			task.getFragment().returnError(
+					getFailureString(task.getFragment(), failures, jobs.size()));
+			return false;
+		}
+
 		return true;
 	}
 
@@ -1563,11 +2130,29 @@ public class VolumeBrowserActivity extends ListActivity implements
 			return ASYNC_TASK_EXPORT;
 		}
 
+		@Override
+		protected boolean isBackgroundTransfer() {
+			return true;
+		}
+
 		@Override
 		protected EDAsyncTask<Void, Void, Boolean> createTask() {
 			return new ExportFileTask(this);
 		}
 
+		// Key identifying this export in the transfer journal
+		private String[] getExportKey() {
+			ArrayList<String> key = new ArrayList<String>();
+			key.add("export");
+			key.add(mVolume.getFileSystem().getName());
+			key.add(mVolume.getPath());
+			key.add(mDstPath.getAbsolutePath());
+			for (EncFSFile srcFile : mSelectedFileList) {
+				key.add(srcFile.getPath());
+			}
+			return key.toArray(new String[key.size()]);
+		}
+
 		private class ExportFileTask extends EDAsyncTask<Void, Void, Boolean> {
 
 			public ExportFileTask(TaskFragment fragment) {
@@ -1582,10 +2167,6 @@ public class VolumeBrowserActivity extends ListActivity implements
 								getSelectedFileString(mTaskFragment,
 										mSelectedFileList));
 
-				if (mSelectedFileList.size() > 1) {
-					mProgressDialogMultiJob = true;
-				}
-
 				mProgressDialogMsgResId = R.string.export_dialog_msg_str;
 
 				return super.createProgressDialog(activity);
@@ -1594,49 +2175,64 @@ public class VolumeBrowserActivity extends ListActivity implements
 			@Override
 			protected Boolean doInBackground(Void... args) {
 
-				mTaskProgress.setNumJobs(mSelectedFileList.size());
+				mTaskProgress.setNumJobs(1);
+				mTaskProgress.incCurrentJob();
+				mTaskProgress.setCurrentBytes(0);
 
-				for (EncFSFile srcFile : mSelectedFileList) {
-					mTaskProgress.incCurrentJob();
-					mTaskProgress.setCurrentBytes(0);
-					mTaskProgress.setCurrentFileIdx(1);
-					mTaskProgress.setCurrentFileName(srcFile.getName());
-					updateProgress();
+				EncFSVolume volume = cloneTransferVolume(mEncfsVolume, this);
+				if (volume == null) {
+					return false;
+				}
 
-					File dstFile = new File(mDstPath, srcFile.getName());
+				TransferJournal journal = new TransferJournal(
+						mApp.getDbHelper(), getExportKey());
 
-					if (dstFile.exists()) {
-						// Error dialog
-						mTaskFragment.returnError(String.format(mTaskFragment
-								.getStringSafe(R.string.error_file_exists),
-								dstFile.getName()));
-						return false;
-					}
+				File existing = findExistingDestination(mSelectedFileList,
+						mDstPath, journal);
+				if (existing != null) {
+					// Error dialog
+					mTaskFragment.returnError(String.format(mTaskFragment
+							.getStringSafe(R.string.error_file_exists),
+							existing.getName()));
+					return false;
+				}
 
-					if (srcFile.isDirectory()) {
-						mProgressDialogMultiFile = true;
-						// Create destination dir
-						if (!dstFile.mkdir()) {
-							mTaskFragment
-									.returnError(String.format(
-											mTaskFragment
-													.getStringSafe(R.string.error_mkdir_fail),
-											dstFile.getAbsolutePath()));
-							return false;
-						}
+				// Gather everything to export so it can run as one job
+				TransferManifest<String, File> manifest = new TransferManifest<String, File>();
+				ArrayList<TransferManifest.Entry<String, File>> srcDirs = new ArrayList<TransferManifest.Entry<String, File>>();
+				for (EncFSFile srcFile : mSelectedFileList) {
+					File dstFile = new File(mDstPath, srcFile.getName());
 
-						if (recursiveExport(srcFile, dstFile, this) != true) {
-							return false;
-						}
+					if (srcFile.isDirectory()) {
+						srcDirs.add(new TransferManifest.Entry<String, File>(
+								srcFile.getPath(), dstFile, 0));
 					} else {
-						mProgressDialogMultiFile = false;
-						if (exportFile(srcFile, dstFile, this) != true) {
-							return false;
-						}
+						manifest.addFile(srcFile.getPath(), dstFile,
+								srcFile.getLength());
 					}
 				}
 
-				return true;
+				mProgressDialogMultiFile = false;
+
+				if (srcDirs.isEmpty() && manifest.getNumFiles() == 1) {
+					// Single file, no need for the pipeline
+					EncFSFile srcFile = mSelectedFileList.get(0);
+					mTaskProgress.setCurrentFileName(srcFile.getName());
+					updateProgress();
+
+					return exportFile(volume, srcFile,
+							manifest.getFiles().get(0).dst, this);
+				}
+
+				mTaskProgress.setCurrentFileName(mDstPath.getName());
+				updateProgress();
+
+				if (!srcDirs.isEmpty()
+						&& !planExport(srcDirs, volume, manifest, this)) {
+					return false;
+				}
+
+				return runExport(manifest, volume, journal, this);
 			}
 
 			// Run after the task is complete
@@ -1683,6 +2279,11 @@ public class VolumeBrowserActivity extends ListActivity implements
 			return ASYNC_TASK_DECRYPT;
 		}
 
+		@Override
+		protected boolean isBackgroundTransfer() {
+			return true;
+		}
+
 		@Override
 		protected EDAsyncTask<Void, Void, DecryptTaskResult> createTask() {
 			return new DecryptFileTask(this);
@@ -1705,7 +2306,12 @@ public class VolumeBrowserActivity extends ListActivity implements
 
 			@Override
 			protected DecryptTaskResult doInBackground(Void... args) {
-				boolean result = exportFile(mSrcFile, mDstFile, this);
+				EncFSVolume volume = cloneTransferVolume(mEncfsVolume, this);
+				if (volume == null) {
+					return null;
+				}
+
+				boolean result = exportFile(volume, mSrcFile, mDstFile, this);
 				if (result) {
 					return new DecryptTaskResult(mSrcFile, mDstFile);
 				} else {
@@ -1747,6 +2353,11 @@ public class VolumeBrowserActivity extends ListActivity implements
 			return ASYNC_TASK_SYNC;
 		}
 
+		@Override
+		protected boolean isBackgroundTransfer() {
+			return true;
+		}
+
 		@Override
 		protected EDAsyncTask<Void, Void, Boolean> createTask() {
 			return new SyncFileTask(this);
@@ -1768,7 +2379,22 @@ public class VolumeBrowserActivity extends ListActivity implements
 
 			@Override
 			protected Boolean doInBackground(Void... args) {
-				return importFile(mSrcFile, mDstFile, this);
+				EncFSVolume volume = cloneTransferVolume(mEncfsVolume, this);
+				if (volume == null) {
+					return false;
+				}
+
+				// EncFSFile objects are tied to a volume, look up our own
+				EncFSFile dstFile;
+				try {
+					dstFile = volume.getFile(mDstFile.getPath());
+				} catch (Exception e) {
+					Logger.logException(TAG, e);
+					mTaskFragment.returnError(e.getMessage());
+					return false;
+				}
+
+				return importFile(mSrcFile, dstFile, this);
 			}
 
 			// Run after the task is complete
@@ -1813,11 +2439,27 @@ public class VolumeBrowserActivity extends ListActivity implements
 			return ASYNC_TASK_IMPORT;
 		}
 
+		@Override
+		protected boolean isBackgroundTransfer() {
+			return true;
+		}
+
 		@Override
 		protected EDAsyncTask<Void, Void, Boolean> createTask() {
 			return new ImportFileTask(this);
 		}
 
+		// Key identifying this import in the transfer journal
+		private String[] getImportKey() {
+			ArrayList<String> key = new ArrayList<String>();
+			key.add("import");
+			key.add(mVolume.getFileSystem().getName());
+			key.add(mVolume.getPath());
+			key.add(mCurEncFSDir.getPath());
+			key.addAll(mSrcFileList);
+			return key.toArray(new String[key.size()]);
+		}
+
 		private class ImportFileTask extends EDAsyncTask<Void, Void, Boolean> {
 
 			public ImportFileTask(TaskFragment fragment) {
@@ -1832,74 +2474,60 @@ public class VolumeBrowserActivity extends ListActivity implements
 								mSrcFileList));
 				mProgressDialogMsgResId = R.string.import_dialog_msg_str;
 
-				if (mSelectedFileList.size() > 1) {
-					mProgressDialogMultiJob = true;
-				}
-
 				return super.createProgressDialog(activity);
 			}
 
 			@Override
 			protected Boolean doInBackground(Void... args) {
 
-				EncFSFile dstFile;
-
-				mTaskProgress.setNumJobs(mSrcFileList.size());
+				EncFSVolume volume = cloneTransferVolume(mEncfsVolume, this);
+				if (volume == null) {
+					return false;
+				}
 
+				// Gather everything to import so it can run as one job
+				TransferManifest<File, String> manifest = new TransferManifest<File, String>();
 				for (String srcFilePath : mSrcFileList) {
-					mTaskProgress.incCurrentJob();
-					mTaskProgress.setCurrentBytes(0);
-					mTaskProgress.setCurrentFileIdx(1);
-					mTaskProgress.setCurrentFileName(srcFilePath);
-					updateProgress();
-
 					String importPath = new File(
 							Environment.getExternalStorageDirectory(),
 							srcFilePath).getAbsolutePath();
 					Log.d(TAG, "Importing file: " + importPath);
 
 					File srcFile = new File(importPath);
+					planImport(srcFile, EncFSVolume.combinePath(mCurEncFSDir,
+							srcFile.getName()), manifest);
+				}
 
-					// Create destination encFS file or directory
-					try {
-						String dstPath = EncFSVolume.combinePath(mCurEncFSDir,
-								srcFile.getName());
+				mTaskProgress.setNumJobs(1);
+				mTaskProgress.incCurrentJob();
+				mTaskProgress.setCurrentBytes(0);
+				mProgressDialogMultiFile = false;
 
-						if (srcFile.isDirectory()) {
-							if (mEncfsVolume.makeDir(dstPath)) {
-								dstFile = mEncfsVolume.getFile(dstPath);
-							} else {
-								mTaskFragment
-										.returnError(String.format(
-												mTaskFragment
-														.getStringSafe(R.string.error_mkdir_fail),
-												dstPath));
-								return false;
-							}
-						} else {
-							dstFile = mEncfsVolume.createFile(dstPath);
+				if (manifest.getNumDirs() == 0 && manifest.getNumFiles() == 1) {
+					// Single file, no need for the pipeline
+					TransferManifest.Entry<File, String> entry = manifest
+							.getFiles().get(0);
+					mTaskProgress.setCurrentFileName(entry.src.getPath());
+					updateProgress();
+
+					try {
+						if (!importFile(entry.src,
+								volume.createFile(entry.dst), this)) {
+							removePartialFile(volume, entry.dst);
+							return false;
 						}
+						return true;
 					} catch (Exception e) {
 						Logger.logException(TAG, e);
 						mTaskFragment.returnError(e.getMessage());
 						return false;
 					}
-
-					if (srcFile.isDirectory()) {
-						mProgressDialogMultiFile = true;
-						if (recursiveImport(srcFile, dstFile, this) != true) {
-							return false;
-						}
-					} else {
-						mProgressDialogMultiFile = false;
-						if (importFile(srcFile, dstFile, this) != true) {
-							return false;
-						}
-					}
 				}
 
-				return true;
+				TransferJournal journal = new TransferJournal(
+						mApp.getDbHelper(), getImportKey());
 
+				return runImport(manifest, volume, journal, this);
 			}
 
 			// Run after the task is complete
@@ -1945,6 +2573,11 @@ public class VolumeBrowserActivity extends ListActivity implements
 			return ASYNC_TASK_PASTE;
 		}
 
+		@Override
+		protected boolean isBackgroundTransfer() {
+			return true;
+		}
+
 		@Override
 		protected EDAsyncTask<Void, Void, Boolean> createTask() {
 			return new PasteFileTask(this);
@@ -1983,65 +2616,105 @@ public class VolumeBrowserActivity extends ListActivity implements
 			@Override
 			protected Boolean doInBackground(Void... args) {
 
+				EncFSVolume volume = cloneTransferVolume(mEncfsVolume, this);
+				if (volume == null) {
+					return false;
+				}
+
+				// Batch metadata requests when moving files on Google Drive
+				GoogleDriveFileProvider batchProvider = null;
+				if (mPasteMode == PASTE_OP_CUT) {
+					batchProvider = getBatchingProvider(volume);
+				}
+
 				try {
 					boolean result;
 
 					mTaskProgress.setNumJobs(mSelectedFileList.size());
 
-					for (EncFSFile curFile : mSelectedFileList) {
-						mTaskProgress.incCurrentJob();
-						mTaskProgress.setCurrentFileIdx(1);
-						mTaskProgress.setCurrentFileName(curFile.getName());
-						updateProgress();
-
-						if (mPasteMode == PASTE_OP_CUT) {
-							result = mEncfsVolume.movePath(curFile.getPath(),
-									EncFSVolume.combinePath(mCurEncFSDir,
-											curFile),
-									new ProgressListener(this));
-						} else {
-							// If destination path exists, use a duplicate name
-							String combinedPath = EncFSVolume.combinePath(
-									mCurEncFSDir, curFile);
-							if (mEncfsVolume.pathExists(combinedPath)) {
-								// Bump up a counter until path doesn't exist
-								int counter = 0;
-								do {
-									counter++;
-									combinedPath = EncFSVolume.combinePath(
-											mCurEncFSDir, "(Copy " + counter
-													+ ") " + curFile.getName());
-								} while (mEncfsVolume.pathExists(combinedPath));
-
-								result = mEncfsVolume.copyPath(
-										curFile.getPath(), combinedPath,
-										new ProgressListener(this));
-							} else {
-								result = mEncfsVolume.copyPath(
-										curFile.getPath(),
-										mCurEncFSDir.getPath(),
-										new ProgressListener(this));
+					if (batchProvider != null) {
+						batchProvider.beginBatch();
+					}
+
+					try {
+						for (EncFSFile curFile : mSelectedFileList) {
+							if (getCancelSignal().isCancelled()) {
+								return false;
 							}
-						}
 
-						if (result == false) {
+							mTaskProgress.incCurrentJob();
+							mTaskProgress.setCurrentFileIdx(1);
+							mTaskProgress.setCurrentFileName(curFile.getName());
+							updateProgress();
+
 							if (mPasteMode == PASTE_OP_CUT) {
-								mTaskFragment
-										.returnError(String.format(
-												mTaskFragment
-														.getStringSafe(R.string.error_move_fail),
-												curFile.getName(), mCurEncFSDir
-														.getPath()));
+								result = volume.movePath(curFile.getPath(),
+										EncFSVolume.combinePath(mCurEncFSDir,
+												curFile),
+										new ProgressListener(this));
 							} else {
-								mTaskFragment
-										.returnError(String.format(
-												mTaskFragment
-														.getStringSafe(R.string.error_copy_fail),
-												curFile.getName(), mCurEncFSDir
-														.getPath()));
+								// If destination path exists, use a duplicate name
+								String combinedPath = EncFSVolume.combinePath(
+										mCurEncFSDir, curFile);
+								boolean renamed = false;
+								if (volume.pathExists(combinedPath)) {
+									// Bump up a counter until path doesn't exist
+									int counter = 0;
+									do {
+										counter++;
+										combinedPath = EncFSVolume.combinePath(
+												mCurEncFSDir, "(Copy " + counter
+														+ ") " + curFile.getName());
+									} while (volume.pathExists(combinedPath));
+									renamed = true;
+								}
+
+								if (copyCiphertext(volume, curFile,
+										combinedPath)) {
+									result = true;
+								} else if (curFile.isDirectory()
+										&& mVolume.getFileSystem().getAccount() != null) {
+									// Errors are reported by copyDirectory()
+									if (!copyDirectory(curFile, combinedPath,
+											volume, this)) {
+										return false;
+									}
+									result = true;
+								} else if (renamed) {
+									result = volume.copyPath(
+											curFile.getPath(), combinedPath,
+											new ProgressListener(this));
+								} else {
+									result = volume.copyPath(
+											curFile.getPath(),
+											mCurEncFSDir.getPath(),
+											new ProgressListener(this));
+								}
 							}
 
-							return false;
+							if (result == false) {
+								if (mPasteMode == PASTE_OP_CUT) {
+									mTaskFragment
+											.returnError(String.format(
+													mTaskFragment
+															.getStringSafe(R.string.error_move_fail),
+													curFile.getName(), mCurEncFSDir
+															.getPath()));
+								} else {
+									mTaskFragment
+											.returnError(String.format(
+													mTaskFragment
+															.getStringSafe(R.string.error_copy_fail),
+													curFile.getName(), mCurEncFSDir
+															.getPath()));
+								}
+
+								return false;
+							}
+						}
+					} finally {
+						if (batchProvider != null) {
+							batchProvider.endBatch();
 						}
 					}
 				} catch (Exception e) {
@@ -2105,6 +2778,11 @@ public class VolumeBrowserActivity extends ListActivity implements
 			this.mCurEncFSDir = curEncFSDir;
 		}
 
+		@Override
+		protected Executor getExecutor() {
+			return TaskExecutors.forVolume(mVolume);
+		}
+
 		@Override
 		protected int getTaskId() {
 			switch (mMode) {
@@ -2170,26 +2848,40 @@ public class VolumeBrowserActivity extends ListActivity implements
 			protected Boolean doInBackground(Void... args) {
 				switch (mMode) {
 				case DELETE_FILE:
+					// Batch metadata requests when deleting files on Google Drive
+					GoogleDriveFileProvider batchProvider = getBatchingProvider(
+							mEncfsVolume);
+
 					try {
 						mTaskProgress.setNumJobs(mSelectedFileList.size());
 
-						for (EncFSFile curFile : mSelectedFileList) {
-							mTaskProgress.incCurrentJob();
-							mTaskProgress.setCurrentFileIdx(1);
-							mTaskProgress.setCurrentFileName(curFile.getName());
-							updateProgress();
+						if (batchProvider != null) {
+							batchProvider.beginBatch();
+						}
 
-							boolean result = mEncfsVolume.deletePath(
-									curFile.getPath(), true,
-									new ProgressListener(this));
+						try {
+							for (EncFSFile curFile : mSelectedFileList) {
+								mTaskProgress.incCurrentJob();
+								mTaskProgress.setCurrentFileIdx(1);
+								mTaskProgress.setCurrentFileName(curFile.getName());
+								updateProgress();
 
-							if (result == false) {
-								mTaskFragment
-										.returnError(String.format(
-												mTaskFragment
-														.getStringSafe(R.string.error_delete_fail),
-												curFile.getName()));
-								return false;
+								boolean result = mEncfsVolume.deletePath(
+										curFile.getPath(), true,
+										new ProgressListener(this));
+
+								if (result == false) {
+									mTaskFragment
+											.returnError(String.format(
+													mTaskFragment
+															.getStringSafe(R.string.error_delete_fail),
+													curFile.getName()));
+									return false;
+								}
+							}
+						} finally {
+							if (batchProvider != null) {
+								batchProvider.endBatch();
 							}
 						}
 					} catch (Exception e) {
@@ -20,6 +20,7 @@ package org.mrpdaemon.android.encdroid;
 
 import java.io.IOException;
 import java.io.File;
+import java.util.concurrent.Executor;
 
 import org.mrpdaemon.sec.encfs.EncFSConfig;
 import org.mrpdaemon.sec.encfs.EncFSConfigFactory;
@@ -901,6 +902,11 @@ public class VolumeListActivity extends ListActivity implements
 			this.mConfigPath = configPath;
 		}
 
+		@Override
+		protected Executor getExecutor() {
+			return TaskExecutors.CRYPTO;
+		}
+
 		@Override
 		protected int getTaskId() {
 			return ASYNC_TASK_UNLOCK;
@@ -1082,6 +1088,11 @@ public class VolumeListActivity extends ListActivity implements
 			this.mPassword = password;
 		}
 
+		@Override
+		protected Executor getExecutor() {
+			return TaskExecutors.CRYPTO;
+		}
+
 		@Override
 		protected int getTaskId() {
 			return ASYNC_TASK_CREATE;
@@ -1200,6 +1211,11 @@ public class VolumeListActivity extends ListActivity implements
 			this.mVolume = volume;
 		}
 
+		@Override
+		protected Executor getExecutor() {
+			return TaskExecutors.forFileSystem(mVolume.getFileSystem());
+		}
+
 		@Override
 		protected int getTaskId() {
 			return ASYNC_TASK_DELETE;
@@ -1295,6 +1311,12 @@ public class VolumeListActivity extends ListActivity implements
 			this.mApp = app;
 		}
 
+		@Override
+		protected Executor getExecutor() {
+			return TaskExecutors.forFileSystem(mApp.getFileSystemList().get(
+					mVolumeIdx));
+		}
+
 		@Override
 		protected int getTaskId() {
 			return ASYNC_TASK_LAUNCH_CHOOSER;
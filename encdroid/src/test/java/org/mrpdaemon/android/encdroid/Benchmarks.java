@@ -0,0 +1,68 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mrpdaemon.android.encdroid;
+
+import java.util.Arrays;
+
+/*
+ * Minimal benchmark harness for the JVM tests. A task is run a few times to
+ * warm up the JIT, then timed over several more runs of which the median is
+ * reported. Results are printed rather than asserted since they depend on
+ * the machine running the tests.
+ */
+class Benchmarks {
+
+	// Runs before measuring
+	private static final int WARMUP_RUNS = 2;
+
+	// Measured runs
+	private static final int MEASURED_RUNS = 5;
+
+	// Code to benchmark
+	interface Task {
+		void run() throws Exception;
+	}
+
+	// Return the median time taken by the task in nanoseconds
+	static long medianNanos(Task task) throws Exception {
+		for (int i = 0; i < WARMUP_RUNS; i++) {
+			task.run();
+		}
+
+		long[] times = new long[MEASURED_RUNS];
+		for (int i = 0; i < MEASURED_RUNS; i++) {
+			long start = System.nanoTime();
+			task.run();
+			times[i] = System.nanoTime() - start;
+		}
+
+		Arrays.sort(times);
+		return times[MEASURED_RUNS / 2];
+	}
+
+	// Throughput in MB/s of moving the given bytes in the given time
+	static double megabytesPerSecond(long bytes, long nanos) {
+		return (bytes / (1024.0 * 1024.0)) / (nanos / 1e9);
+	}
+
+	static void report(String benchmark, String result) {
+		System.out.println("[benchmark] " + benchmark + ": " + result);
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+
+/*
+ * Fake Drive server accepting resumable uploads into an empty root folder.
+ * Uploaded data is discarded, only the size of each chunk is recorded.
+ */
+class FakeUploadTransport extends MockHttpTransport {
+
+	// Media bytes received
+	final AtomicLong bytesReceived = new AtomicLong();
+
+	// Size of each chunk received
+	final List<Long> chunkSizes = Collections
+			.synchronizedList(new ArrayList<Long>());
+
+	// Time taken to receive each chunk
+	private final long chunkDelayMs;
+
+	FakeUploadTransport(long chunkDelayMs) {
+		this.chunkDelayMs = chunkDelayMs;
+	}
+
+	@Override
+	public LowLevelHttpRequest buildRequest(final String method,
+			final String url) throws IOException {
+		return new MockLowLevelHttpRequest(url) {
+			@Override
+			public LowLevelHttpResponse execute() throws IOException {
+				MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+
+				if (method.equals("GET")) {
+					// Existence check of the destination
+					response.setContentType("application/json");
+					response.setContent("{\"items\":[]}");
+				} else if (method.equals("POST")) {
+					// Start of a resumable upload
+					bytesReceived.set(0);
+					response.addHeader("Location",
+							"https://www.googleapis.com/upload/session");
+				} else if (method.equals("PUT")) {
+					return receiveChunk(this, response);
+				} else {
+					// Deletion of an earlier upload
+					response.setStatusCode(204);
+				}
+				return response;
+			}
+		};
+	}
+
+	// Take a chunk, acknowledging it until the last one arrived
+	private LowLevelHttpResponse receiveChunk(MockLowLevelHttpRequest request,
+			MockLowLevelHttpResponse response) throws IOException {
+		final AtomicLong length = new AtomicLong();
+		request.getStreamingContent().writeTo(new OutputStream() {
+			@Override
+			public void write(int oneByte) {
+				length.incrementAndGet();
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				length.addAndGet(len);
+			}
+		});
+		chunkSizes.add(length.get());
+		long received = bytesReceived.addAndGet(length.get());
+
+		if (chunkDelayMs > 0) {
+			try {
+				Thread.sleep(chunkDelayMs);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+
+		// Content-Range: bytes <first>-<last>/<total>
+		String range = request.getFirstHeaderValue("Content-Range");
+		long total = Long.parseLong(range.substring(range.lastIndexOf('/') + 1));
+		if (received < total) {
+			response.setStatusCode(308);
+			response.addHeader("Range", "bytes=0-" + (received - 1));
+		} else {
+			response.setContentType("application/json");
+			response.setContent("{\"id\":\"uploaded\",\"title\":\"file\","
+					+ "\"mimeType\":\"application/octet-stream\"}");
+		}
+		return response;
+	}
+}
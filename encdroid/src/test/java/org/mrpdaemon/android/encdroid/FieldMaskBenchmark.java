@@ -0,0 +1,233 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mrpdaemon.android.encdroid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mrpdaemon.sec.encfs.EncFSFileInfo;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.FileList;
+
+/*
+ * Compares listing a large Drive folder with full File resources in the
+ * API's default page size against the field masked, large page listings
+ * GoogleDriveFileProvider makes. A fake server returns resources shaped
+ * like the real ones and counts the (uncompressed) bytes it sends.
+ */
+public class FieldMaskBenchmark {
+
+	// Number of files in the listed folder
+	private static final int NUM_FILES = 3000;
+
+	// Page size the server uses when the request doesn't set one
+	private static final int DEFAULT_PAGE_SIZE = 100;
+
+	// Query listing the root folder
+	private static final String ROOT_QUERY = "'root' in parents and trashed=false";
+
+	// Bytes and responses sent by the fake server
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicInteger responses = new AtomicInteger();
+
+	private Drive drive;
+
+	// Fake Drive server listing NUM_FILES files in any folder
+	private class FakeDriveTransport extends MockHttpTransport {
+		@Override
+		public LowLevelHttpRequest buildRequest(String method, final String url)
+				throws IOException {
+			return new MockLowLevelHttpRequest(url) {
+				@Override
+				public LowLevelHttpResponse execute() throws IOException {
+					String body = listResponse(new GenericUrl(url));
+					bytesSent.addAndGet(body.getBytes("UTF-8").length);
+					responses.incrementAndGet();
+
+					MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+					response.setContentType("application/json");
+					response.setContent(body);
+					return response;
+				}
+			};
+		}
+	}
+
+	// Build a page of the listing, honoring any field mask
+	private static String listResponse(GenericUrl url) {
+		boolean masked = url.getFirst("fields") != null;
+		String maxResults = (String) url.getFirst("maxResults");
+		String pageToken = (String) url.getFirst("pageToken");
+
+		int pageSize = maxResults != null ? Integer.parseInt(maxResults)
+				: DEFAULT_PAGE_SIZE;
+		int start = pageToken != null ? Integer.parseInt(pageToken) : 0;
+		int end = Math.min(NUM_FILES, start + pageSize);
+
+		StringBuilder json = new StringBuilder();
+		if (!masked) {
+			json.append("{\"kind\":\"drive#fileList\",")
+					.append("\"etag\":\"\\\"ZXRhZ2V0YWdldGFnZXRhZ2V0YWc\\\"\",")
+					.append("\"selfLink\":\"https://www.googleapis.com/drive/v2/files\",");
+		} else {
+			json.append('{');
+		}
+		if (end < NUM_FILES) {
+			json.append("\"nextPageToken\":\"").append(end).append("\",");
+		}
+		json.append("\"items\":[");
+		for (int i = start; i < end; i++) {
+			if (i > start) {
+				json.append(',');
+			}
+			appendFile(json, i, masked);
+		}
+		return json.append("]}").toString();
+	}
+
+	// Append the resource of the i'th file, with only the masked fields or all
+	private static void appendFile(StringBuilder json, int i, boolean masked) {
+		String id = "0B1x2y3z4EncdroidTestFile" + i;
+		String title = "VAxC8w7mTz1l2kq9pRq3eW4r5t6y7u8i" + i;
+
+		json.append("{\"id\":\"").append(id).append("\",\"title\":\"")
+				.append(title).append("\",")
+				.append("\"mimeType\":\"application/octet-stream\",")
+				.append("\"modifiedDate\":\"2016-05-04T12:34:56.789Z\",")
+				.append("\"fileSize\":\"").append(1000 + i).append("\",")
+				.append("\"editable\":true,")
+				.append("\"downloadUrl\":\"https://doc-0c-6k-docs.googleusercontent.com/docs/securesc/abcdefghij/klmnopqrst/1462365296000/01234567890123456789/01234567890123456789/")
+				.append(id).append("?e=download&gd=true\"");
+
+		if (!masked) {
+			json.append(",\"kind\":\"drive#file\",")
+					.append("\"etag\":\"\\\"ZXRhZ2V0YWdldGFnZXRhZ2V0YWc/MTQ2MjM2NTI5Njc4OQ\\\"\",")
+					.append("\"selfLink\":\"https://www.googleapis.com/drive/v2/files/").append(id).append("\",")
+					.append("\"webContentLink\":\"https://docs.google.com/uc?id=").append(id).append("&export=download\",")
+					.append("\"alternateLink\":\"https://drive.google.com/file/d/").append(id).append("/view?usp=drivesdk\",")
+					.append("\"iconLink\":\"https://ssl.gstatic.com/docs/doclist/images/icon_10_generic_list.png\",")
+					.append("\"labels\":{\"starred\":false,\"hidden\":false,\"trashed\":false,\"restricted\":false,\"viewed\":true},")
+					.append("\"createdDate\":\"2016-05-04T12:34:56.789Z\",")
+					.append("\"modifiedByMeDate\":\"2016-05-04T12:34:56.789Z\",")
+					.append("\"lastViewedByMeDate\":\"2016-05-04T12:34:56.789Z\",")
+					.append("\"markedViewedByMeDate\":\"1970-01-01T00:00:00.000Z\",")
+					.append("\"version\":\"").append(12345 + i).append("\",")
+					.append("\"parents\":[{\"kind\":\"drive#parentReference\",\"id\":\"0AEncdroidRootFolder\",")
+					.append("\"selfLink\":\"https://www.googleapis.com/drive/v2/files/").append(id).append("/parents/0AEncdroidRootFolder\",")
+					.append("\"parentLink\":\"https://www.googleapis.com/drive/v2/files/0AEncdroidRootFolder\",\"isRoot\":true}],")
+					.append("\"userPermission\":{\"kind\":\"drive#permission\",\"etag\":\"\\\"ZXRhZ2V0YWdldGFnZXRhZ2V0YWc/cGVybWlzc2lvbg\\\"\",")
+					.append("\"id\":\"me\",\"selfLink\":\"https://www.googleapis.com/drive/v2/files/").append(id).append("/permissions/me\",")
+					.append("\"role\":\"owner\",\"type\":\"user\"},")
+					.append("\"originalFilename\":\"").append(title).append("\",")
+					.append("\"md5Checksum\":\"0123456789abcdef0123456789abcdef\",")
+					.append("\"quotaBytesUsed\":\"").append(1000 + i).append("\",")
+					.append("\"ownerNames\":[\"Encdroid User\"],")
+					.append("\"owners\":[{\"kind\":\"drive#user\",\"displayName\":\"Encdroid User\",")
+					.append("\"picture\":{\"url\":\"https://lh3.googleusercontent.com/-abcdefghijk/AAAAAAAAAAI/AAAAAAAAAAA/abcdefghijk/s64/photo.jpg\"},")
+					.append("\"isAuthenticatedUser\":true,\"permissionId\":\"01234567890123456789\",\"emailAddress\":\"user@example.com\"}],")
+					.append("\"lastModifyingUserName\":\"Encdroid User\",")
+					.append("\"lastModifyingUser\":{\"kind\":\"drive#user\",\"displayName\":\"Encdroid User\",")
+					.append("\"isAuthenticatedUser\":true,\"permissionId\":\"01234567890123456789\",\"emailAddress\":\"user@example.com\"},")
+					.append("\"copyable\":true,\"writersCanShare\":true,\"shared\":false,\"explicitlyTrashed\":false,")
+					.append("\"appDataContents\":false,\"headRevisionId\":\"0B1x2y3z4EncdroidRevision").append(i).append("\",")
+					.append("\"spaces\":[\"drive\"]");
+		}
+		json.append('}');
+	}
+
+	@Before
+	public void setUp() {
+		drive = new Drive.Builder(new FakeDriveTransport(),
+				GsonFactory.getDefaultInstance(), null).setApplicationName(
+				"encdroid-test").build();
+	}
+
+	// List the root folder without field masks, like before
+	private int listFull() throws IOException {
+		int items = 0;
+		Drive.Files.List request = drive.files().list().setQ(ROOT_QUERY);
+		do {
+			FileList files = request.execute();
+			items += files.getItems().size();
+			request.setPageToken(files.getNextPageToken());
+		} while (request.getPageToken() != null);
+		return items;
+	}
+
+	@Test
+	public void testListingPayload() throws Exception {
+		final GoogleDriveFileProvider provider = new GoogleDriveFileProvider(
+				drive, "/", null, null,
+				GoogleDriveOutputStream.DEFAULT_CHUNK_SIZE, false);
+
+		// One listing of each kind to compare what goes over the wire
+		bytesSent.set(0);
+		responses.set(0);
+		assertEquals(NUM_FILES, listFull());
+		long fullBytes = bytesSent.get();
+		int fullResponses = responses.get();
+
+		bytesSent.set(0);
+		responses.set(0);
+		List<EncFSFileInfo> listing = provider.listFiles("/");
+		assertEquals(NUM_FILES, listing.size());
+		long maskedBytes = bytesSent.get();
+		int maskedResponses = responses.get();
+
+		long fullNanos = Benchmarks.medianNanos(new Benchmarks.Task() {
+			@Override
+			public void run() throws Exception {
+				listFull();
+			}
+		});
+		long maskedNanos = Benchmarks.medianNanos(new Benchmarks.Task() {
+			@Override
+			public void run() throws Exception {
+				provider.listFiles("/");
+			}
+		});
+
+		Benchmarks.report("Drive listing of " + NUM_FILES + " files, full",
+				fullResponses + " responses, " + fullBytes + " bytes, "
+						+ fullNanos / 1000000 + " ms");
+		Benchmarks.report("Drive listing of " + NUM_FILES
+				+ " files, field masked", maskedResponses + " responses, "
+				+ maskedBytes + " bytes, " + maskedNanos / 1000000 + " ms");
+
+		assertEquals(NUM_FILES / DEFAULT_PAGE_SIZE, fullResponses);
+		assertEquals(3, maskedResponses);
+		assertTrue(maskedBytes * 4 < fullBytes);
+	}
+}
@@ -0,0 +1,278 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+/*
+ * Checks that batched Drive deletes and moves go out as a single batch
+ * request, against a fake Drive server that counts the requests it receives.
+ */
+public class GoogleDriveBatchTest {
+
+	// Number of files deleted by each test
+	private static final int NUM_FILES = 10;
+
+	// Multipart boundary of fake batch responses
+	private static final String BOUNDARY = "batch_boundary";
+
+	// Requests received by the fake server ("METHOD url")
+	private final List<String> requests = Collections
+			.synchronizedList(new ArrayList<String>());
+
+	private GoogleDriveFileProvider provider;
+
+	// Children of each folder on the fake server (parent ID -> title -> ID)
+	private final Map<String, Map<String, String>> tree = new HashMap<String, Map<String, String>>();
+
+	// Add a file to the fake server
+	private void addServerFile(String parentId, String title, String id) {
+		Map<String, String> children = tree.get(parentId);
+		if (children == null) {
+			children = new HashMap<String, String>();
+			tree.put(parentId, children);
+		}
+		children.put(title, id);
+	}
+
+	/*
+	 * Answer a files.list query, either for a single title or for all
+	 * children of a folder, from the fake server's tree.
+	 */
+	private String listResponse(String url) {
+		String query = (String) new GenericUrl(url).getFirst("q");
+		String title = null;
+		if (query.startsWith("title = '")) {
+			title = query.substring(9, query.indexOf('\'', 9));
+		}
+		int parentEnd = query.indexOf("' in parents");
+		String parentId = query.substring(
+				query.lastIndexOf('\'', parentEnd - 1) + 1, parentEnd);
+
+		StringBuilder items = new StringBuilder();
+		Map<String, String> children = tree.get(parentId);
+		if (children != null) {
+			for (Map.Entry<String, String> child : children.entrySet()) {
+				if (title != null && !title.equals(child.getKey())) {
+					continue;
+				}
+				if (items.length() > 0) {
+					items.append(',');
+				}
+				String mimeType = tree.containsKey(child.getValue()) ? GoogleDriveFileProvider.DIRECTORY_MIME_TYPE
+						: "application/octet-stream";
+				items.append("{\"id\":\"").append(child.getValue())
+						.append("\",\"title\":\"").append(child.getKey())
+						.append("\",\"mimeType\":\"").append(mimeType)
+						.append("\"}");
+			}
+		}
+		return "{\"items\":[" + items + "]}";
+	}
+
+	// Fake Drive server answering listings, deletes and batches
+	private class FakeDriveTransport extends MockHttpTransport {
+		@Override
+		public LowLevelHttpRequest buildRequest(final String method,
+				final String url) throws IOException {
+			return new MockLowLevelHttpRequest(url) {
+				@Override
+				public LowLevelHttpResponse execute() throws IOException {
+					requests.add(method + " " + url);
+
+					MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+					if (url.contains("/batch")) {
+						response.setContentType("multipart/mixed; boundary="
+								+ BOUNDARY);
+						response.setContent(batchResponse(getContentAsString()));
+					} else if (method.equals("GET")) {
+						response.setContentType("application/json");
+						response.setContent(listResponse(url));
+					} else {
+						response.setStatusCode(204);
+					}
+					return response;
+				}
+			};
+		}
+	}
+
+	/*
+	 * Build a batch response answering each request of the given multipart
+	 * batch request body, 200 for patches and 204 for deletes.
+	 */
+	private static String batchResponse(String requestBody) {
+		StringBuilder body = new StringBuilder();
+		String[] parts = requestBody.split("Content-Type: application/http");
+		for (int i = 1; i < parts.length; i++) {
+			body.append("--").append(BOUNDARY).append("\r\n");
+			body.append("Content-Type: application/http\r\n");
+			body.append("Content-ID: <response-").append(i).append(">\r\n\r\n");
+			if (parts[i].contains("PATCH ")) {
+				body.append("HTTP/1.1 200 OK\r\n");
+				body.append("Content-Type: application/json\r\n\r\n");
+				body.append("{\"id\":\"moved\"}\r\n");
+			} else {
+				body.append("HTTP/1.1 204 No Content\r\n\r\n\r\n");
+			}
+		}
+		body.append("--").append(BOUNDARY).append("--\r\n");
+		return body.toString();
+	}
+
+	@Before
+	public void setUp() {
+		Drive drive = new Drive.Builder(new FakeDriveTransport(),
+				GsonFactory.getDefaultInstance(), null).setApplicationName(
+				"encdroid-test").build();
+		provider = new GoogleDriveFileProvider(drive, "/volume", null, null,
+				GoogleDriveOutputStream.DEFAULT_CHUNK_SIZE, false);
+
+		// Known file ID's, so deletes don't need to resolve paths
+		for (int i = 0; i < NUM_FILES; i++) {
+			provider.fileCreated("/file" + i, new File().setId("id" + i));
+		}
+
+		// Folders for moves, which resolve their paths on the server
+		addServerFile("root", "volume", "volume");
+		addServerFile("volume", "src", "src");
+		addServerFile("volume", "dst", "dst");
+		addServerFile("dst", "existing", "existing");
+		for (int i = 0; i < NUM_FILES; i++) {
+			addServerFile("src", "move" + i, "move" + i);
+		}
+	}
+
+	@Test
+	public void testUnbatchedDeletes() throws IOException {
+		for (int i = 0; i < NUM_FILES; i++) {
+			assertTrue(provider.delete("/file" + i));
+		}
+
+		assertEquals(NUM_FILES, requests.size());
+		for (String request : requests) {
+			assertTrue(request, request.startsWith("DELETE "));
+		}
+	}
+
+	@Test
+	public void testBatchedDeletes() throws IOException {
+		provider.beginBatch();
+		for (int i = 0; i < NUM_FILES; i++) {
+			assertTrue(provider.delete("/file" + i));
+		}
+
+		// Nothing is sent until the batch ends
+		assertEquals(0, requests.size());
+
+		provider.endBatch();
+
+		assertEquals(1, requests.size());
+		assertTrue(requests.get(0), requests.get(0).startsWith("POST ")
+				&& requests.get(0).contains("/batch"));
+	}
+
+	@Test
+	public void testOtherThreadNotBatched() throws Exception {
+		provider.beginBatch();
+		provider.delete("/file0");
+
+		// Deletes from another thread don't join this thread's batch
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					provider.delete("/file1");
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		thread.start();
+		thread.join();
+
+		assertEquals(1, requests.size());
+		assertTrue(requests.get(0).startsWith("DELETE "));
+
+		provider.endBatch();
+
+		assertEquals(2, requests.size());
+		assertTrue(requests.get(1).contains("/batch"));
+	}
+
+	@Test
+	public void testBatchedMoves() throws IOException {
+		provider.beginBatch();
+		for (int i = 0; i < NUM_FILES; i++) {
+			assertTrue(provider.move("/src/move" + i, "/dst/move" + i));
+		}
+		provider.endBatch();
+
+		/*
+		 * Lookups of volume, src and dst, one listing each of src and dst and
+		 * the batch, no matter how many files were moved
+		 */
+		assertEquals(requests.toString(), 6, requests.size());
+		for (String request : requests.subList(0, 5)) {
+			assertTrue(request, request.startsWith("GET "));
+		}
+		assertTrue(requests.get(5), requests.get(5).startsWith("POST ")
+				&& requests.get(5).contains("/batch"));
+	}
+
+	@Test
+	public void testBatchedMoveOntoExistingFile() throws IOException {
+		provider.beginBatch();
+		assertTrue(provider.move("/src/move0", "/dst/move0"));
+		try {
+			provider.move("/src/move1", "/dst/existing");
+			fail("Moved onto an existing file");
+		} catch (IOException e) {
+			// Expected
+		}
+
+		assertTrue(provider.move("/src/move2", "/src/renamed"));
+		provider.endBatch();
+
+		// The failed move didn't change what the other moves cost
+		assertEquals(requests.toString(), 6, requests.size());
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mrpdaemon.android.encdroid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.drive.Drive;
+
+/*
+ * Checks how GoogleDriveOutputStream sizes its upload chunks, against a fake
+ * server accepting resumable uploads.
+ */
+public class GoogleDriveOutputStreamTest {
+
+	private static final int MB = 1024 * 1024;
+
+	// Smallest valid chunk size, chunk sizes are multiples of it
+	private static final int MIN_CHUNK = MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+
+	// Size of the uploaded file
+	private static final int FILE_SIZE = 8 * MB;
+
+	// Upload a file of FILE_SIZE bytes, returning the chunk sizes sent
+	private static List<Long> upload(int chunkSize, boolean adaptive,
+			long chunkDelayMs) throws Exception {
+		FakeUploadTransport transport = new FakeUploadTransport(chunkDelayMs);
+		Drive drive = new Drive.Builder(transport,
+				GsonFactory.getDefaultInstance(), null).setApplicationName(
+				"encdroid-test").build();
+		TransferExecutor executor = new TransferExecutor(1);
+		GoogleDriveFileProvider provider = new GoogleDriveFileProvider(drive,
+				"/", null, executor.getLane("Drive", 1), chunkSize, adaptive);
+
+		OutputStream os = new GoogleDriveOutputStream(provider, "/file",
+				FILE_SIZE);
+		byte[] block = new byte[64 * 1024];
+		for (int i = 0; i < FILE_SIZE / block.length; i++) {
+			os.write(block);
+		}
+		os.close();
+
+		assertEquals(FILE_SIZE, transport.bytesReceived.get());
+		return new ArrayList<Long>(transport.chunkSizes);
+	}
+
+	@Test
+	public void testRoundChunkSize() {
+		assertEquals(10 * MB, GoogleDriveOutputStream.roundChunkSize(10 * MB));
+		assertEquals(MB, GoogleDriveOutputStream.roundChunkSize(MB + 1000));
+		assertEquals(MB, GoogleDriveOutputStream.roundChunkSize(MB
+				+ MIN_CHUNK - 1));
+		assertEquals(MIN_CHUNK, GoogleDriveOutputStream.roundChunkSize(100));
+		assertEquals(MIN_CHUNK, GoogleDriveOutputStream.roundChunkSize(0));
+	}
+
+	@Test
+	public void testMaxAdaptiveChunkSize() {
+		// Up to 4x the configured size
+		assertEquals(4 * MB, GoogleDriveOutputStream.getMaxAdaptiveChunkSize(MB));
+
+		// But no more than 32MB
+		assertEquals(32 * MB,
+				GoogleDriveOutputStream.getMaxAdaptiveChunkSize(10 * MB));
+
+		// Unless the configured size is larger already
+		assertEquals(40 * MB,
+				GoogleDriveOutputStream.getMaxAdaptiveChunkSize(40 * MB));
+	}
+
+	@Test
+	public void testFixedChunkSize() throws Exception {
+		List<Long> chunks = upload(MB, false, 0);
+
+		assertEquals(FILE_SIZE / MB, chunks.size());
+		for (long chunk : chunks) {
+			assertEquals(MB, chunk);
+		}
+	}
+
+	@Test
+	public void testAdaptiveChunksGrowOnFastLink() throws Exception {
+		/*
+		 * Each chunk takes a few milliseconds, so the measured throughput
+		 * asks for far larger chunks than the 4x growth allows
+		 */
+		List<Long> chunks = upload(MIN_CHUNK, true, 5);
+
+		assertEquals(MIN_CHUNK, (long) chunks.get(0));
+		for (long chunk : chunks) {
+			assertTrue(chunks.toString(), chunk <= 4 * MIN_CHUNK);
+		}
+		assertEquals(chunks.toString(), 4 * MIN_CHUNK,
+				(long) chunks.get(chunks.size() - 2));
+	}
+}
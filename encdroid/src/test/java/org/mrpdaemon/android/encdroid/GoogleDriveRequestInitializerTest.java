@@ -0,0 +1,212 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mrpdaemon.android.encdroid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.Sleeper;
+
+/*
+ * Checks which failures GoogleDriveRequestInitializer retries, against a
+ * fake server replaying a script of responses. Backoff delays are recorded
+ * instead of waited out.
+ */
+public class GoogleDriveRequestInitializerTest {
+
+	// Scripted response standing for an I/O error
+	private static final int IO_ERROR = -1;
+
+	// Responses still to be returned by the fake server, 200 once empty
+	private final LinkedList<Integer> script = new LinkedList<Integer>();
+
+	// Number of requests the fake server received
+	private int requests = 0;
+
+	// Backoff delays requested between retries
+	private final List<Long> sleeps = new ArrayList<Long>();
+
+	// Credential that does nothing
+	private static final HttpRequestInitializer NO_CREDENTIAL = new HttpRequestInitializer() {
+		@Override
+		public void initialize(HttpRequest request) {
+		}
+	};
+
+	private class ScriptedTransport extends MockHttpTransport {
+		@Override
+		public LowLevelHttpRequest buildRequest(String method, String url) {
+			return new MockLowLevelHttpRequest(url) {
+				@Override
+				public LowLevelHttpResponse execute() throws IOException {
+					requests++;
+
+					int status = script.isEmpty() ? 200 : script.remove();
+					if (status == IO_ERROR) {
+						throw new IOException("Connection reset");
+					}
+
+					MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+					response.setStatusCode(status);
+					return response;
+				}
+			};
+		}
+	}
+
+	// Execute a request through an initializer with the given settings
+	private HttpResponse execute(HttpRequestInitializer credential,
+			int maxRetries, Integer... responses) throws IOException {
+		for (Integer response : responses) {
+			script.add(response);
+		}
+
+		GoogleDriveRequestInitializer initializer = new GoogleDriveRequestInitializer(
+				credential, maxRetries);
+		initializer.setSleeper(new Sleeper() {
+			@Override
+			public void sleep(long millis) {
+				sleeps.add(millis);
+			}
+		});
+
+		return new ScriptedTransport().createRequestFactory(initializer)
+				.buildGetRequest(new GenericUrl("https://www.example.com/"))
+				.execute();
+	}
+
+	@Test
+	public void testRetriesServerErrors() throws IOException {
+		assertEquals(200, execute(NO_CREDENTIAL, 5, 503, 500).getStatusCode());
+		assertEquals(3, requests);
+		assertEquals(2, sleeps.size());
+	}
+
+	@Test
+	public void testRetriesRateLimit() throws IOException {
+		assertEquals(200, execute(NO_CREDENTIAL, 5, 429).getStatusCode());
+		assertEquals(2, requests);
+		assertEquals(1, sleeps.size());
+	}
+
+	@Test
+	public void testRetriesIOErrors() throws IOException {
+		assertEquals(200, execute(NO_CREDENTIAL, 5, IO_ERROR).getStatusCode());
+		assertEquals(2, requests);
+		assertEquals(1, sleeps.size());
+	}
+
+	@Test
+	public void testBackoffGrows() throws IOException {
+		execute(NO_CREDENTIAL, 5, 503, 503, 503, 503);
+
+		// Doubling from 1 second with up to 50% randomization
+		assertEquals(4, sleeps.size());
+		for (int i = 0; i < sleeps.size(); i++) {
+			long interval = 1000L << i;
+			long sleep = sleeps.get(i);
+			if (sleep < interval / 2 || sleep > interval * 3 / 2) {
+				fail("Retry " + i + " waited " + sleep + " ms");
+			}
+		}
+	}
+
+	@Test
+	public void testDoesNotRetryClientErrors() throws IOException {
+		try {
+			execute(NO_CREDENTIAL, 5, 404);
+			fail("404 didn't fail the request");
+		} catch (HttpResponseException e) {
+			assertEquals(404, e.getStatusCode());
+		}
+		assertEquals(1, requests);
+		assertEquals(0, sleeps.size());
+	}
+
+	@Test
+	public void testGivesUpAfterMaxRetries() throws IOException {
+		try {
+			execute(NO_CREDENTIAL, 2, 503, 503, 503, 503);
+			fail("Request succeeded after too many retries");
+		} catch (HttpResponseException e) {
+			assertEquals(503, e.getStatusCode());
+		}
+		assertEquals(3, requests);
+	}
+
+	@Test
+	public void testNoRetries() throws IOException {
+		try {
+			execute(NO_CREDENTIAL, 0, 503);
+			fail("Request was retried");
+		} catch (HttpResponseException e) {
+			assertEquals(503, e.getStatusCode());
+		}
+		assertEquals(1, requests);
+	}
+
+	@Test
+	public void testCredentialHandlesUnauthorizedFirst() throws IOException {
+		final int[] refreshes = { 0 };
+
+		// Credential refreshing its token on a 401
+		HttpRequestInitializer credential = new HttpRequestInitializer() {
+			@Override
+			public void initialize(HttpRequest request) {
+				request.setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+					@Override
+					public boolean handleResponse(HttpRequest request,
+							HttpResponse response, boolean supportsRetry) {
+						if (response.getStatusCode() == 401) {
+							refreshes[0]++;
+							return true;
+						}
+						return false;
+					}
+				});
+			}
+		};
+
+		assertEquals(200, execute(credential, 5, 401, 503).getStatusCode());
+		assertEquals(1, refreshes[0]);
+		assertEquals(3, requests);
+
+		// Only the 503 waited
+		assertEquals(1, sleeps.size());
+	}
+}
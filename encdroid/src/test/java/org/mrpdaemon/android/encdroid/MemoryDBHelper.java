@@ -0,0 +1,79 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mrpdaemon.android.encdroid;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * DBHelper keeping transfer journals in memory, with the semantics of the
+ * SQL tables, for tests that don't have a database.
+ */
+class MemoryDBHelper extends DBHelper {
+
+	// File states of each transfer (transfer -> source -> state)
+	final Map<String, Map<String, Integer>> journals = new HashMap<String, Map<String, Integer>>();
+
+	MemoryDBHelper() {
+		super(null);
+	}
+
+	@Override
+	public Map<String, Integer> getJournalStates(String transfer) {
+		Map<String, Integer> states = journals.get(transfer);
+		return states == null ? new HashMap<String, Integer>()
+				: new HashMap<String, Integer>(states);
+	}
+
+	@Override
+	public void insertJournalFiles(String transfer,
+			List<? extends TransferManifest.Entry<?, ?>> files, int state) {
+		Map<String, Integer> states = journals.get(transfer);
+		if (states == null) {
+			states = new HashMap<String, Integer>();
+			journals.put(transfer, states);
+		}
+		for (TransferManifest.Entry<?, ?> file : files) {
+			String src = String.valueOf(file.src);
+			if (!states.containsKey(src)) {
+				states.put(src, state);
+			}
+		}
+	}
+
+	@Override
+	public void updateJournalFile(String transfer, String src, int state,
+			long bytes) {
+		Map<String, Integer> states = journals.get(transfer);
+		if (states != null && states.containsKey(src)) {
+			states.put(src, state);
+		}
+	}
+
+	@Override
+	public void deleteJournal(String transfer) {
+		journals.remove(transfer);
+	}
+
+	@Override
+	public void pruneJournals(long cutoff) {
+	}
+}
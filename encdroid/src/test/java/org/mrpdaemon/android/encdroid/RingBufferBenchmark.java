@@ -0,0 +1,145 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mrpdaemon.android.encdroid;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.drive.Drive;
+
+/*
+ * Measures the handoff between the writer of a Drive upload and its upload
+ * thread. The old default PipedInputStream and ByteRingBuffer are compared
+ * directly, then a whole GoogleDriveOutputStream upload is measured against
+ * a fake server accepting resumable uploads.
+ */
+public class RingBufferBenchmark {
+
+	// Bytes moved by each run
+	private static final int TOTAL_BYTES = 8 * 1024 * 1024;
+
+	// Size of the writes, EncFS writes a block at a time
+	private static final int WRITE_SIZE = 1024;
+
+	// Size of the reads, the uploader fills a chunk buffer in large reads
+	private static final int READ_SIZE = 256 * 1024;
+
+	// Upload chunk size of the sink benchmark
+	private static final int CHUNK_SIZE = 1024 * 1024;
+
+	// Write TOTAL_BYTES to the stream in WRITE_SIZE writes and close it
+	private static void produce(OutputStream os) throws IOException {
+		byte[] block = new byte[WRITE_SIZE];
+		for (int i = 0; i < TOTAL_BYTES / WRITE_SIZE; i++) {
+			block[0] = (byte) i;
+			os.write(block, 0, block.length);
+		}
+		os.close();
+	}
+
+	/*
+	 * Read the stream to its end on another thread while writing to the
+	 * given output, returning the number of bytes read.
+	 */
+	private static long handOff(final InputStream is, OutputStream os)
+			throws Exception {
+		final AtomicLong bytesRead = new AtomicLong();
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] buf = new byte[READ_SIZE];
+				try {
+					int read;
+					while ((read = is.read(buf)) >= 0) {
+						bytesRead.addAndGet(read);
+					}
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		reader.start();
+		produce(os);
+		reader.join();
+		return bytesRead.get();
+	}
+
+	@Test
+	public void testHandOff() throws Exception {
+		long pipeNanos = Benchmarks.medianNanos(new Benchmarks.Task() {
+			@Override
+			public void run() throws Exception {
+				// What GoogleDriveOutputStream used before
+				PipedInputStream is = new PipedInputStream();
+				PipedOutputStream os = new PipedOutputStream(is);
+				assertEquals(TOTAL_BYTES, handOff(is, os));
+			}
+		});
+		long ringNanos = Benchmarks.medianNanos(new Benchmarks.Task() {
+			@Override
+			public void run() throws Exception {
+				ByteRingBuffer ring = new ByteRingBuffer(
+						GoogleDriveOutputStream.DEFAULT_BUFFER_SIZE);
+				assertEquals(TOTAL_BYTES,
+						handOff(ring.getInputStream(), ring.getOutputStream()));
+			}
+		});
+
+		Benchmarks.report("PipedInputStream handoff", String.format(
+				"%.1f MB/s", Benchmarks.megabytesPerSecond(TOTAL_BYTES,
+						pipeNanos)));
+		Benchmarks.report("ByteRingBuffer handoff", String.format(
+				"%.1f MB/s", Benchmarks.megabytesPerSecond(TOTAL_BYTES,
+						ringNanos)));
+	}
+
+	@Test
+	public void testUploadStream() throws Exception {
+		final FakeUploadTransport transport = new FakeUploadTransport(0);
+		Drive drive = new Drive.Builder(transport,
+				GsonFactory.getDefaultInstance(), null).setApplicationName(
+				"encdroid-test").build();
+		TransferExecutor executor = new TransferExecutor(1);
+		final GoogleDriveFileProvider provider = new GoogleDriveFileProvider(
+				drive, "/", null, executor.getLane("Drive", 1), CHUNK_SIZE,
+				false);
+
+		long nanos = Benchmarks.medianNanos(new Benchmarks.Task() {
+			@Override
+			public void run() throws Exception {
+				produce(new GoogleDriveOutputStream(provider, "/file",
+						TOTAL_BYTES));
+				assertEquals(TOTAL_BYTES, transport.bytesReceived.get());
+			}
+		});
+
+		Benchmarks.report("GoogleDriveOutputStream upload", String.format(
+				"%.1f MB/s", Benchmarks.megabytesPerSecond(TOTAL_BYTES, nanos)));
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mrpdaemon.android.encdroid;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mrpdaemon.sec.encfs.EncFSConfigFactory;
+import org.mrpdaemon.sec.encfs.EncFSFileInputStream;
+import org.mrpdaemon.sec.encfs.EncFSFileOutputStream;
+import org.mrpdaemon.sec.encfs.EncFSLocalFileProvider;
+import org.mrpdaemon.sec.encfs.EncFSVolume;
+import org.mrpdaemon.sec.encfs.EncFSVolumeBuilder;
+
+/*
+ * Measures StreamCopier importing a local file into a local EncFS volume
+ * and exporting it back, with the buffer size used for local volumes and
+ * with the 8 KB buffer copies used before. Progress reported by the copies
+ * must add up to the file length.
+ */
+public class StreamCopierBenchmark {
+
+	// Password of the test volume
+	private static final String PASSWORD = "test";
+
+	// Size of the copied file
+	private static final int FILE_SIZE = 4 * 1024 * 1024;
+
+	// Buffer size of the copies before StreamCopier
+	private static final int OLD_BUFFER_SIZE = 8192;
+
+	private File root;
+	private File localFile;
+	private EncFSVolume volume;
+
+	// Bytes reported through progress callbacks
+	private final AtomicLong progressBytes = new AtomicLong();
+
+	private final StreamCopier.ProgressCallback callback = new StreamCopier.ProgressCallback() {
+		@Override
+		public void bytesCopied(long bytes) {
+			progressBytes.addAndGet(bytes);
+		}
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		root = File.createTempFile("encdroid", "test");
+		root.delete();
+		root.mkdir();
+
+		File volumeDir = new File(root, "volume");
+		volumeDir.mkdir();
+		EncFSLocalFileProvider provider = new EncFSLocalFileProvider(volumeDir);
+		new EncFSVolumeBuilder().withFileProvider(provider)
+				.withConfig(EncFSConfigFactory.createDefault())
+				.withPassword(PASSWORD).writeVolumeConfig();
+		volume = new EncFSVolumeBuilder().withFileProvider(provider)
+				.withPassword(PASSWORD).buildVolume();
+
+		byte[] data = new byte[FILE_SIZE];
+		new Random(0).nextBytes(data);
+		localFile = new File(root, "local");
+		OutputStream os = new FileOutputStream(localFile);
+		try {
+			os.write(data);
+		} finally {
+			os.close();
+		}
+	}
+
+	@After
+	public void tearDown() {
+		deleteTree(root);
+	}
+
+	private static void deleteTree(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteTree(child);
+			}
+		}
+		file.delete();
+	}
+
+	// Import the local file into the volume
+	private void importFile(int bufferSize) throws Exception {
+		if (volume.pathExists("/file")) {
+			volume.deletePath("/file", false);
+		}
+
+		progressBytes.set(0);
+		StreamCopier.copyAndClose(new FileInputStream(localFile),
+				new EncFSFileOutputStream(volume.createFile("/file"),
+						FILE_SIZE), bufferSize, callback);
+		assertEquals(FILE_SIZE, progressBytes.get());
+	}
+
+	// Export the volume's file to a local file
+	private void exportFile(int bufferSize) throws Exception {
+		progressBytes.set(0);
+		StreamCopier.copyAndClose(
+				new EncFSFileInputStream(volume.getFile("/file")),
+				new FileOutputStream(new File(root, "exported")), bufferSize,
+				callback);
+		assertEquals(FILE_SIZE, progressBytes.get());
+	}
+
+	// Time the given copy and report its throughput
+	private static void measure(String name, Benchmarks.Task copy)
+			throws Exception {
+		long nanos = Benchmarks.medianNanos(copy);
+		Benchmarks.report(name, String.format("%.1f MB/s",
+				Benchmarks.megabytesPerSecond(FILE_SIZE, nanos)));
+	}
+
+	@Test
+	public void testLocalToEncFS() throws Exception {
+		measure("local -> EncFS, 8 KB buffer", new Benchmarks.Task() {
+			@Override
+			public void run() throws Exception {
+				importFile(OLD_BUFFER_SIZE);
+			}
+		});
+		measure("local -> EncFS, StreamCopier", new Benchmarks.Task() {
+			@Override
+			public void run() throws Exception {
+				importFile(StreamCopier.getBufferSize(volume
+						.getFileProvider()));
+			}
+		});
+
+		assertEquals(FILE_SIZE, volume.getFile("/file").getLength());
+	}
+
+	@Test
+	public void testEncFSToLocal() throws Exception {
+		importFile(StreamCopier.LOCAL_BUFFER_SIZE);
+
+		measure("EncFS -> local, 8 KB buffer", new Benchmarks.Task() {
+			@Override
+			public void run() throws Exception {
+				exportFile(OLD_BUFFER_SIZE);
+			}
+		});
+		measure("EncFS -> local, StreamCopier", new Benchmarks.Task() {
+			@Override
+			public void run() throws Exception {
+				exportFile(StreamCopier.getBufferSize(volume
+						.getFileProvider()));
+			}
+		});
+
+		assertEquals(FILE_SIZE, new File(root, "exported").length());
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mrpdaemon.android.encdroid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mrpdaemon.sec.encfs.EncFSConfigFactory;
+import org.mrpdaemon.sec.encfs.EncFSFile;
+import org.mrpdaemon.sec.encfs.EncFSFileInputStream;
+import org.mrpdaemon.sec.encfs.EncFSFileOutputStream;
+import org.mrpdaemon.sec.encfs.EncFSLocalFileProvider;
+import org.mrpdaemon.sec.encfs.EncFSVolume;
+import org.mrpdaemon.sec.encfs.EncFSVolumeBuilder;
+
+/*
+ * Checks that a resumed transfer only reuses destinations an earlier run
+ * wrote to, and treats any other existing destination like a fresh run.
+ */
+public class TransferJournalTest {
+
+	// Password of the test volume
+	private static final String PASSWORD = "test";
+
+	// Key of the test transfer
+	private static final String[] KEY = { "test", "transfer" };
+
+	private File root;
+	private File local;
+	private EncFSVolume volume;
+	private MemoryDBHelper dbHelper;
+
+	@Before
+	public void setUp() throws Exception {
+		root = File.createTempFile("encdroid", "test");
+		root.delete();
+		root.mkdir();
+
+		File volumeDir = new File(root, "volume");
+		volumeDir.mkdir();
+		EncFSLocalFileProvider provider = new EncFSLocalFileProvider(volumeDir);
+		new EncFSVolumeBuilder().withFileProvider(provider)
+				.withConfig(EncFSConfigFactory.createDefault())
+				.withPassword(PASSWORD).writeVolumeConfig();
+		volume = new EncFSVolumeBuilder().withFileProvider(provider)
+				.withPassword(PASSWORD).buildVolume();
+
+		local = new File(root, "local");
+		local.mkdir();
+
+		dbHelper = new MemoryDBHelper();
+	}
+
+	@After
+	public void tearDown() {
+		deleteTree(root);
+	}
+
+	private static void deleteTree(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteTree(child);
+			}
+		}
+		file.delete();
+	}
+
+	private void writeVolumeFile(String path, byte[] data) throws Exception {
+		OutputStream os = new EncFSFileOutputStream(volume.createFile(path),
+				data.length);
+		try {
+			os.write(data);
+		} finally {
+			os.close();
+		}
+	}
+
+	private byte[] readVolumeFile(String path) throws Exception {
+		EncFSFile file = volume.getFile(path);
+		byte[] data = new byte[(int) file.getLength()];
+		InputStream is = new EncFSFileInputStream(file);
+		try {
+			int offset = 0;
+			while (offset < data.length) {
+				offset += is.read(data, offset, data.length - offset);
+			}
+		} finally {
+			is.close();
+		}
+		return data;
+	}
+
+	private static File writeLocalFile(File file, byte[] data)
+			throws IOException {
+		OutputStream os = new FileOutputStream(file);
+		try {
+			os.write(data);
+		} finally {
+			os.close();
+		}
+		return file;
+	}
+
+	// Run an import job for the given entry against the test volume
+	private static void runImportJob(TransferManifest.Entry<File, String> entry,
+			TransferJournal journal, EncFSVolume volume) throws Exception {
+		new VolumeBrowserActivity.ImportFileJob(entry, journal, null)
+				.run(volume);
+	}
+
+	@Test
+	public void testFreshExportRejectsExistingDestination() throws Exception {
+		writeVolumeFile("/file", new byte[10]);
+		volume.makeDir("/dir");
+		new File(local, "dir").mkdir();
+
+		List<EncFSFile> srcFiles = Arrays.asList(volume.getFile("/file"),
+				volume.getFile("/dir"));
+		TransferJournal journal = new TransferJournal(dbHelper, KEY);
+
+		File existing = VolumeBrowserActivity.findExistingDestination(
+				srcFiles, local, journal);
+		assertEquals(new File(local, "dir"), existing);
+	}
+
+	@Test
+	public void testResumedExportRejectsUntouchedDestination()
+			throws Exception {
+		writeVolumeFile("/file", new byte[10]);
+		writeVolumeFile("/other", new byte[10]);
+		volume.makeDir("/dir");
+
+		// Interrupted run that created /dir and started /file
+		TransferManifest<String, File> manifest = new TransferManifest<String, File>();
+		manifest.addDir("/dir", new File(local, "dir"));
+		manifest.addFile("/file", new File(local, "file"), 10);
+		manifest.addFile("/other", new File(local, "other"), 10);
+		TransferJournal journal = new TransferJournal(dbHelper, KEY);
+		journal.dirCreated(manifest.getDirs().get(0));
+		journal.addFiles(manifest);
+		journal.fileStarted("/file");
+
+		new File(local, "dir").mkdir();
+		writeLocalFile(new File(local, "file"), new byte[5]);
+
+		List<EncFSFile> srcFiles = new ArrayList<EncFSFile>(Arrays.asList(
+				volume.getFile("/dir"), volume.getFile("/file"),
+				volume.getFile("/other")));
+		journal = new TransferJournal(dbHelper, KEY);
+		assertNull(VolumeBrowserActivity.findExistingDestination(srcFiles,
+				local, journal));
+
+		// The user's own file where the pending one is to be exported
+		writeLocalFile(new File(local, "other"), new byte[3]);
+		assertEquals(new File(local, "other"),
+				VolumeBrowserActivity.findExistingDestination(srcFiles,
+						local, journal));
+	}
+
+	@Test
+	public void testResumedImportKeepsUntouchedDestination() throws Exception {
+		byte[] userData = "user data".getBytes("UTF-8");
+		writeVolumeFile("/pending", userData);
+
+		TransferManifest<File, String> manifest = new TransferManifest<File, String>();
+		manifest.addFile(writeLocalFile(new File(local, "started"),
+				new byte[100]), "/started", 100);
+		manifest.addFile(writeLocalFile(new File(local, "pending"),
+				new byte[100]), "/pending", 100);
+
+		// Interrupted run that started the first file only
+		TransferJournal journal = new TransferJournal(dbHelper, KEY);
+		journal.addFiles(manifest);
+		journal.fileStarted(manifest.getFiles().get(0).src);
+		writeVolumeFile("/started", new byte[30]);
+
+		journal = new TransferJournal(dbHelper, KEY);
+		assertTrue(journal.isStarted(manifest.getFiles().get(0).src));
+		assertFalse(journal.isStarted(manifest.getFiles().get(1).src));
+
+		// Partial file of the interrupted run is imported again
+		runImportJob(manifest.getFiles().get(0), journal, volume);
+		assertEquals(100, volume.getFile("/started").getLength());
+
+		// Existing file the earlier run never touched is left alone
+		try {
+			runImportJob(manifest.getFiles().get(1), journal, volume);
+			fail("Import over an existing file succeeded");
+		} catch (Exception e) {
+			// Expected
+		}
+		assertTrue(Arrays.equals(userData, readVolumeFile("/pending")));
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mrpdaemon.sec.encfs.EncFSConfigFactory;
+import org.mrpdaemon.sec.encfs.EncFSFileInfo;
+import org.mrpdaemon.sec.encfs.EncFSFileOutputStream;
+import org.mrpdaemon.sec.encfs.EncFSLocalFileProvider;
+import org.mrpdaemon.sec.encfs.EncFSVolume;
+import org.mrpdaemon.sec.encfs.EncFSVolumeBuilder;
+
+/*
+ * Checks that scanning a tree for export lists every directory exactly once
+ * and that the manifest has the right file counts and byte totals.
+ */
+public class TransferManifestScanTest {
+
+	// Password of the test volume
+	private static final String PASSWORD = "test";
+
+	// Local file provider counting listFiles() calls per directory
+	private static class CountingFileProvider extends EncFSLocalFileProvider {
+
+		final AtomicInteger listCount = new AtomicInteger(0);
+		final Set<String> listedPaths = new HashSet<String>();
+		final List<String> duplicates = new ArrayList<String>();
+
+		CountingFileProvider(File root) {
+			super(root);
+		}
+
+		@Override
+		public List<EncFSFileInfo> listFiles(String path) throws IOException {
+			listCount.incrementAndGet();
+			synchronized (listedPaths) {
+				if (!listedPaths.add(path)) {
+					duplicates.add(path);
+				}
+			}
+			return super.listFiles(path);
+		}
+	}
+
+	private File root;
+	private CountingFileProvider provider;
+	private EncFSVolume volume;
+
+	// Total bytes written to the test tree
+	private long totalBytes = 0;
+
+	@Before
+	public void setUp() throws Exception {
+		root = File.createTempFile("encdroid", "test");
+		root.delete();
+		root.mkdir();
+
+		provider = new CountingFileProvider(root);
+		new EncFSVolumeBuilder().withFileProvider(provider)
+				.withConfig(EncFSConfigFactory.createDefault())
+				.withPassword(PASSWORD).writeVolumeConfig();
+		volume = new EncFSVolumeBuilder().withFileProvider(provider)
+				.withPassword(PASSWORD).buildVolume();
+
+		/*
+		 * /export/a/b/c with 2 files per directory, plus /export/d with one
+		 * file and an empty /export/e
+		 */
+		String dir = "/export";
+		volume.makeDir(dir);
+		for (String name : new String[] { "a", "b", "c" }) {
+			dir = EncFSVolume.combinePath(dir, name);
+			volume.makeDir(dir);
+			writeFile(EncFSVolume.combinePath(dir, "file1"), 1000);
+			writeFile(EncFSVolume.combinePath(dir, "file2"), 5000);
+		}
+		volume.makeDir("/export/d");
+		writeFile("/export/d/file", 123);
+		volume.makeDir("/export/e");
+
+		provider.listCount.set(0);
+		provider.listedPaths.clear();
+	}
+
+	private void writeFile(String path, int length) throws Exception {
+		OutputStream os = new EncFSFileOutputStream(volume.createFile(path),
+				length);
+		try {
+			os.write(new byte[length]);
+		} finally {
+			os.close();
+		}
+		totalBytes += length;
+	}
+
+	@After
+	public void tearDown() {
+		deleteTree(root);
+	}
+
+	private static void deleteTree(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteTree(child);
+			}
+		}
+		file.delete();
+	}
+
+	@Test
+	public void testScanListsEachDirectoryOnce() throws Exception {
+		File dst = new File(root, "dst");
+		TransferManifest<String, File> manifest = new TransferManifest<String, File>();
+
+		// Same as VolumeBrowserActivity.planExport()
+		TransferPipeline pipeline = new TransferPipeline("Scan", volume, 4,
+				null);
+		TransferManifest.Entry<String, File> dir = new TransferManifest.Entry<String, File>(
+				"/export", dst, 0);
+		manifest.addDir(dir.src, dir.dst);
+		pipeline.submit(new VolumeBrowserActivity.ExportScanJob(pipeline,
+				manifest, dir));
+
+		List<String> failures = pipeline.await();
+		assertTrue(failures.toString(), failures.isEmpty());
+
+		// export, a, b, c, d, e
+		assertEquals(6, provider.listCount.get());
+		assertTrue(provider.duplicates.toString(),
+				provider.duplicates.isEmpty());
+
+		assertEquals(6, manifest.getNumDirs());
+		assertEquals(7, manifest.getNumFiles());
+		assertEquals(13, manifest.size());
+		assertEquals(totalBytes, manifest.getTotalBytes());
+
+		// Every directory comes after its parent
+		List<TransferManifest.Entry<String, File>> dirs = manifest.getDirs();
+		Set<String> seen = new HashSet<String>();
+		for (TransferManifest.Entry<String, File> entry : dirs) {
+			String parent = entry.src.substring(0, entry.src.lastIndexOf('/'));
+			assertTrue(entry.src, entry.src.equals("/export")
+					|| seen.contains(parent));
+			seen.add(entry.src);
+		}
+	}
+}
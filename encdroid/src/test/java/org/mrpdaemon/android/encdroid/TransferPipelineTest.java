@@ -0,0 +1,283 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mrpdaemon.android.encdroid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mrpdaemon.sec.encfs.EncFSConfigFactory;
+import org.mrpdaemon.sec.encfs.EncFSLocalFileProvider;
+import org.mrpdaemon.sec.encfs.EncFSVolume;
+import org.mrpdaemon.sec.encfs.EncFSVolumeBuilder;
+
+/*
+ * Checks the import pipeline: directories are planned before their
+ * children, files are imported in parallel on the workers' own copies of
+ * the volume, and a failed file is reported without stopping the others.
+ */
+public class TransferPipelineTest {
+
+	// Password of the test volume
+	private static final String PASSWORD = "test";
+
+	// Number of pipeline workers
+	private static final int NUM_WORKERS = 3;
+
+	private File root;
+	private File local;
+	private EncFSVolume volume;
+
+	@Before
+	public void setUp() throws Exception {
+		root = File.createTempFile("encdroid", "test");
+		root.delete();
+		root.mkdir();
+
+		File volumeDir = new File(root, "volume");
+		volumeDir.mkdir();
+		EncFSLocalFileProvider provider = new EncFSLocalFileProvider(volumeDir);
+		new EncFSVolumeBuilder().withFileProvider(provider)
+				.withConfig(EncFSConfigFactory.createDefault())
+				.withPassword(PASSWORD).writeVolumeConfig();
+		volume = new EncFSVolumeBuilder().withFileProvider(provider)
+				.withPassword(PASSWORD).buildVolume();
+
+		// photos/2016/05 with 3 files per directory
+		local = new File(root, "photos");
+		File dir = local;
+		for (String name : new String[] { "2016", "05", null }) {
+			dir.mkdir();
+			for (int i = 0; i < 3; i++) {
+				writeLocalFile(new File(dir, "photo" + i + ".jpg"),
+						1000 * (i + 1));
+			}
+			if (name != null) {
+				dir = new File(dir, name);
+			}
+		}
+	}
+
+	@After
+	public void tearDown() {
+		deleteTree(root);
+	}
+
+	private static void deleteTree(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteTree(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static void writeLocalFile(File file, int length)
+			throws IOException {
+		OutputStream os = new FileOutputStream(file);
+		try {
+			os.write(new byte[length]);
+		} finally {
+			os.close();
+		}
+	}
+
+	// Job that runs the given code, named after its index
+	private static abstract class TestJob implements TransferPipeline.Job {
+
+		private final int index;
+
+		TestJob(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public String getName() {
+			return "job" + index;
+		}
+	}
+
+	@Test
+	public void testPlanImportOrdersDirectories() {
+		TransferManifest<File, String> manifest = new TransferManifest<File, String>();
+		VolumeBrowserActivity.planImport(local, "/photos", manifest);
+
+		assertEquals(3, manifest.getDirs().size());
+		assertEquals(9, manifest.getNumFiles());
+
+		Set<String> created = new HashSet<String>();
+		created.add("/");
+		for (TransferManifest.Entry<File, String> dir : manifest.getDirs()) {
+			String parent = dir.dst.substring(0, dir.dst.lastIndexOf('/'));
+			assertTrue(dir.dst + " before its parent",
+					created.contains(parent.isEmpty() ? "/" : parent));
+			created.add(dir.dst);
+		}
+		for (TransferManifest.Entry<File, String> file : manifest.getFiles()) {
+			String parent = file.dst.substring(0, file.dst.lastIndexOf('/'));
+			assertTrue(file.dst + " outside planned directories",
+					created.contains(parent));
+		}
+	}
+
+	@Test
+	public void testImportReportsFailuresAndContinues() throws Exception {
+		TransferManifest<File, String> manifest = new TransferManifest<File, String>();
+		VolumeBrowserActivity.planImport(local, "/photos", manifest);
+
+		// Same as VolumeBrowserActivity.runImport()
+		for (TransferManifest.Entry<File, String> dir : manifest.getDirs()) {
+			assertTrue(volume.makeDir(dir.dst));
+		}
+
+		// A file that disappears between planning and importing
+		File missing = new File(local, "2016/photo1.jpg");
+		assertTrue(missing.delete());
+
+		TransferJournal journal = new TransferJournal(new MemoryDBHelper(),
+				"test");
+		TransferPipeline pipeline = new TransferPipeline("Import", volume,
+				NUM_WORKERS, null);
+		for (TransferManifest.Entry<File, String> file : manifest.getFiles()) {
+			pipeline.submit(new VolumeBrowserActivity.ImportFileJob(file,
+					journal, null));
+		}
+		List<String> failures = pipeline.await();
+
+		assertEquals(failures.toString(), 1, failures.size());
+		assertTrue(failures.get(0),
+				failures.get(0).startsWith(missing.getPath()));
+
+		for (TransferManifest.Entry<File, String> file : manifest.getFiles()) {
+			if (file.src.equals(missing)) {
+				assertFalse(volume.pathExists(file.dst));
+			} else {
+				assertEquals(file.length, volume.getFile(file.dst)
+						.getLength());
+			}
+		}
+	}
+
+	@Test
+	public void testWorkersRunInParallel() throws Exception {
+		final CyclicBarrier barrier = new CyclicBarrier(NUM_WORKERS);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+
+		TransferPipeline pipeline = new TransferPipeline("Test", volume,
+				NUM_WORKERS, null);
+		for (int i = 0; i < NUM_WORKERS * 4; i++) {
+			pipeline.submit(new TestJob(i) {
+				@Override
+				public void run(EncFSVolume volume) throws Exception {
+					int now = running.incrementAndGet();
+					synchronized (maxRunning) {
+						maxRunning.set(Math.max(maxRunning.get(), now));
+					}
+
+					// Only passes once all workers run a job at once
+					barrier.await(10, TimeUnit.SECONDS);
+
+					running.decrementAndGet();
+				}
+			});
+		}
+
+		List<String> failures = pipeline.await();
+		assertTrue(failures.toString(), failures.isEmpty());
+		assertEquals(NUM_WORKERS, maxRunning.get());
+	}
+
+	@Test
+	public void testWorkersUseOwnVolumes() throws Exception {
+		final List<EncFSVolume> volumes = Collections
+				.synchronizedList(new ArrayList<EncFSVolume>());
+		final Set<Thread> threads = Collections
+				.synchronizedSet(new HashSet<Thread>());
+
+		TransferPipeline pipeline = new TransferPipeline("Test", volume,
+				NUM_WORKERS, null);
+		for (int i = 0; i < 30; i++) {
+			pipeline.submit(new TestJob(i) {
+				@Override
+				public void run(EncFSVolume workerVolume) throws Exception {
+					if (threads.add(Thread.currentThread())) {
+						volumes.add(workerVolume);
+					}
+				}
+			});
+		}
+		assertTrue(pipeline.await().isEmpty());
+
+		// One copy per worker thread, never the original
+		assertEquals(threads.size(), new HashSet<EncFSVolume>(volumes).size());
+		for (EncFSVolume workerVolume : volumes) {
+			assertNotSame(volume, workerVolume);
+		}
+	}
+
+	@Test
+	public void testAwaitIncludesJobsSubmittedByJobs() throws Exception {
+		final AtomicInteger completed = new AtomicInteger();
+		final TransferPipeline pipeline = new TransferPipeline("Test", volume,
+				NUM_WORKERS, null);
+
+		// Each job submits two more until the tree is 4 levels deep
+		class TreeJob extends TestJob {
+			private final int depth;
+
+			TreeJob(int depth) {
+				super(depth);
+				this.depth = depth;
+			}
+
+			@Override
+			public void run(EncFSVolume volume) throws Exception {
+				if (depth < 3) {
+					pipeline.submit(new TreeJob(depth + 1));
+					pipeline.submit(new TreeJob(depth + 1));
+				}
+				completed.incrementAndGet();
+			}
+		}
+		pipeline.submit(new TreeJob(0));
+
+		assertTrue(pipeline.await().isEmpty());
+		assertEquals(15, completed.get());
+	}
+}